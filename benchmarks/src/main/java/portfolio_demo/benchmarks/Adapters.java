@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import portfolio_demo.adapters.PortfolioDataAdapter;
+import portfolio_demo.adapters.PortfolioMetadataAdapter;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+import com.lightstreamer.interfaces.data.DataProviderException;
+import com.lightstreamer.interfaces.data.ItemEventListener;
+import com.lightstreamer.interfaces.metadata.MetadataProviderException;
+
+/**
+ * Creates the feeds and the adapters used by the benchmarks, configured
+ * as the Server would do; each Adapter Set gets its own name, as they
+ * share the static map of the feeds.
+ */
+public class Adapters {
+
+    private static final AtomicInteger adapterSets = new AtomicInteger();
+
+    public static Logger getLogger() {
+        return Logger.getLogger("LS_demos_Logger.Portfolio");
+    }
+
+    /**
+     * Returns the parameters for a new Adapter Set with the specified
+     * number of portfolios, all created upon startup.
+     */
+    public static Map<String, String> newParams(int portfolios) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("adapters_conf.id", "BENCHMARK_" + adapterSets.incrementAndGet());
+        params.put("portfolios", String.valueOf(portfolios));
+        params.put("prepopulate", String.valueOf(portfolios));
+        params.put("random_seed", "1");
+        return params;
+    }
+
+    public static PortfolioFeedSimulator newFeed(Map<String, String> params) {
+        return new PortfolioFeedSimulator(getLogger(), params, null);
+    }
+
+    public static PortfolioDataAdapter newDataAdapter(Map<String, String> params,
+            ItemEventListener listener) throws DataProviderException {
+        PortfolioDataAdapter adapter = new PortfolioDataAdapter();
+        adapter.init(params, new File("."));
+        adapter.setListener(listener);
+        return adapter;
+    }
+
+    /**
+     * Creates a Metadata Adapter bound to the feed of a Data Adapter
+     * created with the same parameters.
+     */
+    public static PortfolioMetadataAdapter newMetadataAdapter(Map<String, String> params)
+            throws MetadataProviderException {
+        PortfolioMetadataAdapter adapter = new PortfolioMetadataAdapter();
+        adapter.init(params, new File("."));
+        return adapter;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.adapters.PortfolioDataAdapter;
+import portfolio_demo.feed_simulator.Portfolio;
+
+/**
+ * Many order sources on a single, subscribed portfolio, as for a heavily
+ * traded account: each thread sends a buy and a sell of the same quantity
+ * on its own stock, so that all the orders succeed, and each change is
+ * notified to the subscription. The throughput of the portfolio is the
+ * number of threads divided by the time per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+    private Portfolio portfolio;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Source {
+
+        int stockN;
+
+        @Setup
+        public void setUp(ContentionBenchmark benchmark) {
+            stockN = benchmark.threads.getAndIncrement() % 30;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, String> params = Adapters.newParams(1);
+        PortfolioDataAdapter dataAdapter = Adapters.newDataAdapter(params, new CountingListener());
+        ItemHandle handle = new ItemHandle();
+        dataAdapter.subscribe("portfolio1", handle, false);
+        handle.awaitSnapshot();
+        portfolio = PortfolioDataAdapter.feedMap.get(params.get("adapters_conf.id")).getPortfolio(0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void sources1(Source source) throws Exception {
+        portfolio.buy(source.stockN, 1);
+        portfolio.sell(source.stockN, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sources4(Source source) throws Exception {
+        portfolio.buy(source.stockN, 1);
+        portfolio.sell(source.stockN, 1);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void sources16(Source source) throws Exception {
+        portfolio.buy(source.stockN, 1);
+        portfolio.sell(source.stockN, 1);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.lightstreamer.interfaces.data.IndexedItemEvent;
+import com.lightstreamer.interfaces.data.ItemEvent;
+import com.lightstreamer.interfaces.data.ItemEventListener;
+
+/**
+ * Stands in for the Kernel: each event is consumed, by reading all its
+ * fields, then it is counted on its ItemHandle.
+ */
+public class CountingListener implements ItemEventListener {
+
+    public void update(String itemName, ItemEvent event, boolean isSnapshot) {
+        throw new UnsupportedOperationException("Not a smart update");
+    }
+
+    public void update(String itemName, Map event, boolean isSnapshot) {
+        throw new UnsupportedOperationException("Not a smart update");
+    }
+
+    public void update(String itemName, IndexedItemEvent event, boolean isSnapshot) {
+        throw new UnsupportedOperationException("Not a smart update");
+    }
+
+    public void smartUpdate(Object itemHandle, ItemEvent event, boolean isSnapshot) {
+        Iterator names = event.getNames();
+        while (names.hasNext()) {
+            event.getValueAsString((String) names.next());
+        }
+        ((ItemHandle) itemHandle).onUpdate();
+    }
+
+    public void smartUpdate(Object itemHandle, Map event, boolean isSnapshot) {
+        throw new UnsupportedOperationException("Not used by the adapter");
+    }
+
+    public void smartUpdate(Object itemHandle, IndexedItemEvent event, boolean isSnapshot) {
+        throw new UnsupportedOperationException("Not used by the adapter");
+    }
+
+    public void endOfSnapshot(String itemName) {
+    }
+
+    public void smartEndOfSnapshot(Object itemHandle) {
+        ((ItemHandle) itemHandle).onEndOfSnapshot();
+    }
+
+    public void clearSnapshot(String itemName) {
+    }
+
+    public void smartClearSnapshot(Object itemHandle) {
+    }
+
+    public void failure(Throwable e) {
+        e.printStackTrace();
+    }
+
+}
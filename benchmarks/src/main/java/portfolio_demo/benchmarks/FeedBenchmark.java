@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+/**
+ * Lookup of portfolios already in memory, as done for each order and
+ * subscription; each thread walks the portfolios in a different order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedBenchmark {
+
+    @Param({ "100000" })
+    public int portfolios;
+
+    private PortfolioFeedSimulator feed;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int portfolioN = (int) Thread.currentThread().getId();
+
+        int next(int portfolios) {
+            // a prime stride, to visit all the portfolios out of order
+            portfolioN = (portfolioN + 7919) % portfolios;
+            return portfolioN;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        feed = Adapters.newFeed(Adapters.newParams(portfolios));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Portfolio getPortfolio(Cursor cursor) {
+        return feed.getPortfolio(cursor.next(portfolios));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Portfolio getPortfolioContended(Cursor cursor) {
+        return feed.getPortfolio(cursor.next(portfolios));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+/**
+ * The handle of an item subscribed by a benchmark; it counts the events
+ * received, so that the benchmark can wait for them.
+ * The events for an item are delivered by one thread at a time.
+ */
+public class ItemHandle {
+
+    private static final long TIMEOUT_NANOS = 10000000000L;
+
+    private volatile int updates = 0;
+
+    private volatile int snapshots = 0;
+
+    void onUpdate() {
+        updates++;
+    }
+
+    void onEndOfSnapshot() {
+        snapshots++;
+    }
+
+    public int getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Waits until the specified number of updates has been received
+     * in total, snapshot included.
+     */
+    public void awaitUpdates(int count) {
+        long start = System.nanoTime();
+        while (updates < count) {
+            checkTimeout(start);
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Waits for the end of the snapshot.
+     */
+    public void awaitSnapshot() {
+        long start = System.nanoTime();
+        while (snapshots == 0) {
+            checkTimeout(start);
+            Thread.yield();
+        }
+    }
+
+    private static void checkTimeout(long start) {
+        if (System.nanoTime() - start > TIMEOUT_NANOS) {
+            throw new IllegalStateException("Events not received");
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.adapters.PortfolioMetadataAdapter;
+
+/**
+ * Order entry through the Metadata Adapter, from the parsing of the
+ * client message to the change of the portfolio: a buy followed by a
+ * sell of the same quantity. In the contended profile, each thread
+ * trades on its own portfolio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderEntryBenchmark {
+
+    private PortfolioMetadataAdapter metadataAdapter;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        String buy;
+
+        String sell;
+
+        @Setup
+        public void setUp(OrderEntryBenchmark benchmark) {
+            String portfolioId = "portfolio" + (benchmark.threads.incrementAndGet());
+            buy = "BUY|" + portfolioId + "|item5|100";
+            sell = "SELL|" + portfolioId + "|item5|100";
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, String> params = Adapters.newParams(100);
+        Adapters.newDataAdapter(params, new CountingListener());
+        metadataAdapter = Adapters.newMetadataAdapter(params);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void buySell(Client client) throws Exception {
+        metadataAdapter.notifyUserMessage("user", "session", client.buy);
+        metadataAdapter.notifyUserMessage("user", "session", client.sell);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void buySellContended(Client client) throws Exception {
+        metadataAdapter.notifyUserMessage("user", "session", client.buy);
+        metadataAdapter.notifyUserMessage("user", "session", client.sell);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.adapters.OrderMessage;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+import portfolio_demo.feed_simulator.SymbolTable;
+
+/**
+ * Parsing of an order message, up to the resolution of the portfolio and
+ * stock ids, without applying the order: OrderMessage, as used by
+ * PortfolioMetadataAdapter, against the original parsing, based on
+ * String.split, Integer.parseInt and String.equals, which is reproduced
+ * here as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderParserBenchmark {
+
+    private final String[] messages = {
+        "BUY|portfolio1|item5|100",
+        "SELL|portfolio27|item12|2500",
+        "BUY|portfolio100|item30|7",
+        "SELL|portfolio64|item1|40",
+    };
+
+    private int next = 0;
+
+    private final OrderMessage order = new OrderMessage();
+
+    private SymbolTable portfolioIds;
+
+    private SymbolTable stocks;
+
+    @Setup
+    public void setUp() {
+        PortfolioFeedSimulator feed = Adapters.newFeed(Adapters.newParams(100));
+        portfolioIds = feed.getPortfolioIds();
+        stocks = feed.getStocks();
+    }
+
+    private String nextMessage() {
+        next = (next + 1) & 3;
+        return messages[next];
+    }
+
+    @Benchmark
+    public long split() {
+        String[] pieces = nextMessage().split("\\|");
+        if (pieces.length != 4) {
+            return -1;
+        }
+        int qty;
+        try {
+            qty = Integer.parseInt(pieces[3]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        int portfolioN = portfolioIds.ordinal(pieces[1]);
+        int stockN = stocks.ordinal(pieces[2]);
+        int op = pieces[0].equals("BUY") ? OrderMessage.BUY
+            : (pieces[0].equals("SELL") ? OrderMessage.SELL : OrderMessage.OTHER);
+        return combine(op, portfolioN, stockN, qty);
+    }
+
+    @Benchmark
+    public long orderMessage() {
+        String message = nextMessage();
+        if (order.parse(message) != OrderMessage.OK) {
+            return -1;
+        }
+        int portfolioN = portfolioIds.ordinal(message,
+                order.getStart(OrderMessage.PORTFOLIO_FIELD), order.getEnd(OrderMessage.PORTFOLIO_FIELD));
+        int stockN = stocks.ordinal(message,
+                order.getStart(OrderMessage.STOCK_FIELD), order.getEnd(OrderMessage.STOCK_FIELD));
+        return combine(order.getOp(), portfolioN, stockN, order.getQty());
+    }
+
+    private static long combine(int op, int portfolioN, int stockN, int qty) {
+        return ((long) op << 60) ^ ((long) portfolioN << 40) ^ ((long) stockN << 32) ^ qty;
+    }
+
+}
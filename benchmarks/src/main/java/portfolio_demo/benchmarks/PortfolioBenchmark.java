@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+/**
+ * Orders on a portfolio with no listeners: a buy followed by a sell of
+ * the same quantity, so that the contents don't drift. In the contended
+ * profile, all the threads trade on the same portfolio, each one on its
+ * own stock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortfolioBenchmark {
+
+    private Portfolio portfolio;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Trader {
+
+        int stockN;
+
+        @Setup
+        public void setUp(PortfolioBenchmark benchmark) {
+            stockN = benchmark.threads.getAndIncrement() % 30;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        PortfolioFeedSimulator feed = Adapters.newFeed(Adapters.newParams(1));
+        portfolio = feed.getPortfolio(0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void buySell(Trader trader) throws Exception {
+        portfolio.buy(trader.stockN, 1);
+        portfolio.sell(trader.stockN, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void buySellContended(Trader trader) throws Exception {
+        portfolio.buy(trader.stockN, 1);
+        portfolio.sell(trader.stockN, 1);
+    }
+
+}
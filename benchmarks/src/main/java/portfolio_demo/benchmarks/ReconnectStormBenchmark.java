@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+/**
+ * A reconnect storm, as after a failover: the portfolios are not in
+ * memory and many clients ask for them at the same time, so that each
+ * request creates a different portfolio, with its random contents.
+ * Each iteration starts from a new feed and each operation is a batch
+ * of creations, hence the time per creation is the score divided by
+ * the batch size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = ReconnectStormBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = ReconnectStormBenchmark.BATCH)
+@Fork(1)
+public class ReconnectStormBenchmark {
+
+    static final int BATCH = 10000;
+
+    /**
+     * Enough portfolios for the batches of all the threads.
+     */
+    private static final int PORTFOLIOS = BATCH * 16;
+
+    private PortfolioFeedSimulator feed;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        Map<String, String> params = Adapters.newParams(PORTFOLIOS);
+        params.remove("prepopulate");
+        feed = Adapters.newFeed(params);
+        created.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        feed.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Portfolio create() {
+        return feed.getPortfolio(created.getAndIncrement());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Portfolio createContended() {
+        return feed.getPortfolio(created.getAndIncrement());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Portfolio createStorm() {
+        return feed.getPortfolio(created.getAndIncrement());
+    }
+
+}
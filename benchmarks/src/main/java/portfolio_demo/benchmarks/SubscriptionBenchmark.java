@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.adapters.PortfolioDataAdapter;
+import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+/**
+ * The whole life of a subscription to the Data Adapter: subscribe, wait
+ * for the snapshot, change the portfolio and wait for the update, both
+ * for a buy and for the sell that restores it, then unsubscribe. The
+ * events are received by a stub of the Kernel (see CountingListener).
+ * In the contended profile, each thread subscribes to its own portfolio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionBenchmark {
+
+    private PortfolioDataAdapter dataAdapter;
+
+    private PortfolioFeedSimulator feed;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        String itemName;
+
+        Portfolio portfolio;
+
+        @Setup
+        public void setUp(SubscriptionBenchmark benchmark) {
+            int portfolioN = benchmark.threads.getAndIncrement();
+            itemName = "portfolio" + (portfolioN + 1);
+            portfolio = benchmark.feed.getPortfolio(portfolioN);
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, String> params = Adapters.newParams(100);
+        dataAdapter = Adapters.newDataAdapter(params, new CountingListener());
+        feed = PortfolioDataAdapter.feedMap.get(params.get("adapters_conf.id"));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void subscribeSnapshotUpdate(Client client) throws Exception {
+        run(client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void subscribeSnapshotUpdateContended(Client client) throws Exception {
+        run(client);
+    }
+
+    private void run(Client client) throws Exception {
+        ItemHandle handle = new ItemHandle();
+        dataAdapter.subscribe(client.itemName, handle, false);
+        handle.awaitSnapshot();
+        int updates = handle.getUpdates();
+        client.portfolio.buy(4, 100);
+        handle.awaitUpdates(updates + 1);
+        client.portfolio.sell(4, 100);
+        handle.awaitUpdates(updates + 2);
+        dataAdapter.unsubscribe(client.itemName);
+    }
+
+}
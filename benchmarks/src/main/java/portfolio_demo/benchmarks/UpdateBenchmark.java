@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import portfolio_demo.adapters.PortfolioDataAdapter;
+import portfolio_demo.feed_simulator.Portfolio;
+
+/**
+ * Delivery of the updates of a portfolio while many others are
+ * subscribed too; each update passes the check for late calls of the
+ * Data Adapter, whose cost should not depend on the number of
+ * subscriptions. The benchmark changes the portfolio with a buy and
+ * a sell and waits for both updates to reach the stub Kernel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+
+    @Param({ "10", "1000", "50000" })
+    public int subscriptions;
+
+    private Portfolio portfolio;
+
+    private ItemHandle handle;
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, String> params = Adapters.newParams(subscriptions);
+        PortfolioDataAdapter dataAdapter = Adapters.newDataAdapter(params, new CountingListener());
+        ItemHandle[] handles = new ItemHandle[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            handles[i] = new ItemHandle();
+            dataAdapter.subscribe("portfolio" + (i + 1), handles[i], false);
+        }
+        for (int i = 0; i < subscriptions; i++) {
+            handles[i].awaitSnapshot();
+        }
+        handle = handles[0];
+        portfolio = PortfolioDataAdapter.feedMap.get(params.get("adapters_conf.id")).getPortfolio(0);
+    }
+
+    @Benchmark
+    public void buySellUpdates() throws Exception {
+        int updates = handle.getUpdates();
+        portfolio.buy(4, 100);
+        portfolio.sell(4, 100);
+        handle.awaitUpdates(updates + 2);
+    }
+
+}
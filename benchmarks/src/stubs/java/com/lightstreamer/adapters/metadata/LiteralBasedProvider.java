@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.lightstreamer.adapters.metadata;
+
+import java.io.File;
+import java.util.Map;
+
+import com.lightstreamer.interfaces.metadata.CreditsException;
+import com.lightstreamer.interfaces.metadata.ItemsException;
+import com.lightstreamer.interfaces.metadata.MetadataProviderException;
+import com.lightstreamer.interfaces.metadata.NotificationException;
+
+/**
+ * Local stub of the Lightstreamer generic Metadata Adapter, for the
+ * benchmarks; item groups are split on spaces, like the real one does.
+ */
+public class LiteralBasedProvider {
+
+    public void init(Map params, File configDir) throws MetadataProviderException {
+    }
+
+    public String[] getItems(String user, String session, String group) throws ItemsException {
+        return group.split(" ");
+    }
+
+    public void notifyUserMessage(String user, String session, String message)
+            throws CreditsException, NotificationException {
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.lightstreamer.interfaces.data;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Local stub of the Lightstreamer adapter interface, for the benchmarks.
+ */
+public interface DataProvider {
+
+    public void init(Map params, File configDir) throws DataProviderException;
+
+    public void setListener(ItemEventListener listener);
+
+    public void subscribe(String itemName, boolean needsIterator)
+            throws SubscriptionException, FailureException;
+
+    public void unsubscribe(String itemName)
+            throws SubscriptionException, FailureException;
+
+    public boolean isSnapshotAvailable(String itemName)
+            throws SubscriptionException;
+
+}
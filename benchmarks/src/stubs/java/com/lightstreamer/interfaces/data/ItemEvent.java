@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.lightstreamer.interfaces.data;
+
+import java.util.Iterator;
+
+/**
+ * Local stub of the Lightstreamer adapter interface, for the benchmarks.
+ */
+public interface ItemEvent {
+
+    public Iterator getNames();
+
+    public String getValueAsString(String name);
+
+}
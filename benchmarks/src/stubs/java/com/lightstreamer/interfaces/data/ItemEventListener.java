@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.lightstreamer.interfaces.data;
+
+import java.util.Map;
+
+/**
+ * Local stub of the Lightstreamer adapter interface, for the benchmarks.
+ */
+public interface ItemEventListener {
+
+    public void update(String itemName, ItemEvent event, boolean isSnapshot);
+
+    public void update(String itemName, Map event, boolean isSnapshot);
+
+    public void update(String itemName, IndexedItemEvent event, boolean isSnapshot);
+
+    public void smartUpdate(Object itemHandle, ItemEvent event, boolean isSnapshot);
+
+    public void smartUpdate(Object itemHandle, Map event, boolean isSnapshot);
+
+    public void smartUpdate(Object itemHandle, IndexedItemEvent event, boolean isSnapshot);
+
+    public void endOfSnapshot(String itemName);
+
+    public void smartEndOfSnapshot(Object itemHandle);
+
+    public void clearSnapshot(String itemName);
+
+    public void smartClearSnapshot(Object itemHandle);
+
+    public void failure(Throwable e);
+
+}
@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.lightstreamer.interfaces.metadata;
+
+/**
+ * Local stub of the Lightstreamer adapter interface, for the benchmarks.
+ */
+public class CreditsException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int clientErrorCode;
+
+    private final String clientErrorMsg;
+
+    public CreditsException(int clientErrorCode, String msg) {
+        this(clientErrorCode, msg, null);
+    }
+
+    public CreditsException(int clientErrorCode, String msg, String clientErrorMsg) {
+        super(msg);
+        this.clientErrorCode = clientErrorCode;
+        this.clientErrorMsg = clientErrorMsg;
+    }
+
+    public int getClientErrorCode() {
+        return clientErrorCode;
+    }
+
+    public String getClientErrorMsg() {
+        return clientErrorMsg;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Map;
+
+/**
+ * Carries the messages between the nodes of a PortfolioCluster.
+ * Nodes are identified by their index, from 0 to the number of nodes
+ * minus 1; the messages are opaque strings.
+ * Delivery is not guaranteed (for instance, a message to a node which
+ * is down may be lost), but the messages from a node to another one
+ * must be delivered in the order in which they were sent.
+ * An implementation can be plugged in through the "cluster_transport"
+ * parameter of the feed, as a class name; it needs a public
+ * constructor with no arguments.
+ */
+public interface ClusterTransport {
+
+    /**
+     * Receives the messages sent to this node.
+     */
+    public interface Receiver {
+
+        /**
+         * Called upon each message; the calls for messages from
+         * the same node must not overlap.
+         */
+        public void onMessage(int fromNode, String message);
+    }
+
+    /**
+     * Configures the transport, through the parameters of the feed.
+     * @throws IllegalArgumentException in case of wrong configuration.
+     */
+    public void init(Map params, int node, int nodeCount);
+
+    /**
+     * Starts receiving the messages for this node.
+     */
+    public void start(Receiver receiver);
+
+    /**
+     * Sends a message to a node, without blocking.
+     */
+    public void send(int node, String message);
+
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+/**
+ * A change applied by the feed to all the positions in some stocks at
+ * once, like a stock split or a delisting
+ * (see PortfolioFeedSimulator.applyCorporateAction).
+ */
+public interface CorporateAction {
+
+    /**
+     * Returns the new quantity for a position, given the current one,
+     * which is positive; 0 removes the stock from the portfolio, while a
+     * negative value means that the action cannot be applied and leaves
+     * the position unchanged.
+     * Called while holding the lock of the portfolio, hence it should be
+     * short and must not be blocking.
+     */
+    public int newQty(int stockN, int qty);
+
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by all the portfolios of a feed to send the
+ * notifications to their listeners, together with the policy for
+ * coalescing the notifications.
+ * If coalescing is enabled, the changes on the same stock that are still
+ * pending when a portfolio gets the chance of notifying its listener
+ * are merged into a single notification; a flush interval can be
+ * configured, to let more changes pile up.
+ */
+public class Dispatcher implements Executor {
+
+    /**
+     * Value for the flush interval that disables coalescing.
+     */
+    public static final long NO_COALESCING = -1;
+
+    /**
+     * Pool that runs the notification tasks.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Used to delay the notifications if a flush interval is configured;
+     * null otherwise.
+     */
+    private final ScheduledExecutorService timer;
+
+    private final long flushMillis;
+
+    /**
+     * Creates the dispatcher.
+     * @param threads size of the pool.
+     * @param flushMillis minimum delay in milliseconds between a change
+     * and its notification, during which subsequent changes can be
+     * coalesced; 0 means that only changes which pile up naturally are
+     * coalesced; NO_COALESCING means that every change is notified.
+     */
+    public Dispatcher(int threads, long flushMillis) {
+        this.flushMillis = flushMillis;
+        this.pool = Executors.newFixedThreadPool(threads,
+            new DaemonThreadFactory("Portfolio dispatcher"));
+        if (flushMillis > 0) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("Portfolio flush timer"));
+        } else {
+            this.timer = null;
+        }
+    }
+
+    public boolean isCoalescing() {
+        return flushMillis != NO_COALESCING;
+    }
+
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * Runs a task after the flush interval; the task is run on a timer
+     * thread, hence it should just hand some work over to the pool.
+     * If no flush interval is configured, the task is run immediately.
+     */
+    public void executeAfterFlushInterval(Runnable task) {
+        if (timer != null) {
+            timer.schedule(task, flushMillis, TimeUnit.MILLISECONDS);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Creates daemon threads with numbered names.
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " " + threadCount.incrementAndGet());
+            // don't prevent the JVM from exiting
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
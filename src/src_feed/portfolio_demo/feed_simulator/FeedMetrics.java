@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the runtime metrics of a feed and of its clients.
+ * The metrics are updated on the hot paths, hence they are kept in
+ * striped counters and histograms, so that the threads do not contend;
+ * they can be read through JMX (see FeedMetricsMBean) or as text
+ * (see dump).
+ */
+public class FeedMetrics implements FeedMetricsMBean {
+
+    /**
+     * Order outcome categories.
+     */
+    private static final int ACCEPTED = 0;
+    private static final int REJECTED = 1;
+    private static final int OVERFLOW = 2;
+    private static final int NOT_ENOUGH_STOCK = 3;
+
+    private static final String[] OUTCOME_NAMES = { "accepted", "rejected", "overflow", "not_enough_stock" };
+
+    /**
+     * Number of portfolios with the longest queues listed by dump.
+     */
+    private static final int DEEPEST_QUEUES = 5;
+
+    /**
+     * Number of portfolios with long queues that can be tracked
+     * in order to find the deepest ones (see QueueRanking).
+     */
+    private static final int DEEP_QUEUE_CANDIDATES = 64;
+
+    private final PortfolioFeedSimulator feed;
+
+    private final StripedCounter[] orders = new StripedCounter[OUTCOME_NAMES.length];
+
+    /**
+     * The order counts at the last tick and the rates computed then.
+     */
+    private final long[] lastOrders = new long[OUTCOME_NAMES.length];
+
+    private volatile long[] ordersPerSecond = new long[OUTCOME_NAMES.length];
+
+    private long lastTickNanos = System.nanoTime();
+
+    private final StripedCounter pendingNotifications = new StripedCounter();
+
+    private final Histogram queueDepths = new Histogram();
+
+    private final QueueRanking deepestQueues = new QueueRanking(DEEPEST_QUEUES, DEEP_QUEUE_CANDIDATES);
+
+    private final Histogram snapshotSizes = new Histogram();
+
+    private final Histogram snapshotTimes = new Histogram();
+
+    private final StripedCounter lateCallDrops = new StripedCounter();
+
+    private final AtomicInteger subscriptions = new AtomicInteger();
+
+    private final StripedCounter queuedOrders = new StripedCounter();
+
+    private final StripedCounter refusedOrders = new StripedCounter();
+
+    private final Histogram orderQueueTimes = new Histogram();
+
+    FeedMetrics(PortfolioFeedSimulator feed) {
+        this.feed = feed;
+        for (int i = 0; i < orders.length; i++) {
+            orders[i] = new StripedCounter();
+        }
+    }
+
+    /**
+     * Records the outcome of an order, as defined by Portfolio.
+     */
+    void recordOrder(int outcome) {
+        switch (outcome) {
+        case Portfolio.CHANGED:
+            orders[ACCEPTED].increment();
+            break;
+        case Portfolio.OVERFLOW:
+            orders[OVERFLOW].increment();
+            break;
+        case Portfolio.NOT_ENOUGH_STOCK:
+            orders[NOT_ENOUGH_STOCK].increment();
+            break;
+        default:
+            orders[REJECTED].increment();
+            break;
+        }
+    }
+
+    /**
+     * Records that notifications have been enqueued for a portfolio,
+     * which now has the specified number of them pending.
+     * To be called while holding the lock of the portfolio.
+     */
+    void recordEnqueued(int portfolioN, int count, int depth) {
+        pendingNotifications.add(count);
+        queueDepths.record(depth);
+        deepestQueues.update(portfolioN, depth - count, depth);
+    }
+
+    void recordDelivered(int count) {
+        pendingNotifications.add(-count);
+    }
+
+    void recordSnapshot(int size, long nanos) {
+        snapshotSizes.record(size);
+        snapshotTimes.record(nanos);
+    }
+
+    /**
+     * To be called by the clients of the feed when they discard
+     * a notification received after the unsubscription.
+     */
+    public void recordLateCallDrop() {
+        lateCallDrops.increment();
+    }
+
+    /**
+     * To be called by the clients of the feed upon each subscription
+     * and unsubscription.
+     */
+    public void recordSubscription() {
+        subscriptions.incrementAndGet();
+    }
+
+    public void recordUnsubscription() {
+        subscriptions.decrementAndGet();
+    }
+
+    /**
+     * To be called by the clients of the feed that apply the orders
+     * asynchronously, upon each order enqueued, refused because the
+     * queue was full, and taken from the queue and applied, together
+     * with the time elapsed since it was enqueued.
+     */
+    public void recordOrderQueued() {
+        queuedOrders.increment();
+    }
+
+    public void recordOrderRefused() {
+        refusedOrders.increment();
+    }
+
+    public void recordOrderDequeued(long nanos) {
+        queuedOrders.add(-1);
+        orderQueueTimes.record(nanos);
+    }
+
+    /**
+     * Computes the rates and ranks the deepest queues;
+     * to be called about once per second.
+     */
+    synchronized void tick() {
+        deepestQueues.rank(feed);
+        long now = System.nanoTime();
+        long elapsed = now - lastTickNanos;
+        long[] rates = new long[orders.length];
+        for (int i = 0; i < orders.length; i++) {
+            long count = orders[i].get();
+            rates[i] = elapsed > 0 ? (long) ((count - lastOrders[i]) * 1e9 / elapsed) : 0;
+            lastOrders[i] = count;
+        }
+        ordersPerSecond = rates;
+        lastTickNanos = now;
+    }
+
+    public long getOrdersAccepted() {
+        return orders[ACCEPTED].get();
+    }
+
+    public long getOrdersRejected() {
+        return orders[REJECTED].get();
+    }
+
+    public long getOrdersOverflow() {
+        return orders[OVERFLOW].get();
+    }
+
+    public long getOrdersNotEnoughStock() {
+        return orders[NOT_ENOUGH_STOCK].get();
+    }
+
+    public long getOrdersAcceptedPerSecond() {
+        return ordersPerSecond[ACCEPTED];
+    }
+
+    public long getOrdersRejectedPerSecond() {
+        return ordersPerSecond[REJECTED];
+    }
+
+    public long getOrdersOverflowPerSecond() {
+        return ordersPerSecond[OVERFLOW];
+    }
+
+    public long getOrdersNotEnoughStockPerSecond() {
+        return ordersPerSecond[NOT_ENOUGH_STOCK];
+    }
+
+    public long getPendingNotifications() {
+        return pendingNotifications.get();
+    }
+
+    public long getQueueDepthP50() {
+        return queueDepths.getPercentile(50);
+    }
+
+    public long getQueueDepthP99() {
+        return queueDepths.getPercentile(99);
+    }
+
+    public long getQueueDepthMax() {
+        return queueDepths.getMax();
+    }
+
+    public int getQueueDepth(String portfolioId) {
+        int portfolioN = feed.getPortfolioIds().ordinal(portfolioId);
+        if (portfolioN < 0) {
+            return -1;
+        }
+        Portfolio portfolio = feed.getLoadedPortfolio(portfolioN);
+        return portfolio != null ? portfolio.getQueueDepth() : -1;
+    }
+
+    public long getSnapshots() {
+        return snapshotSizes.getCount();
+    }
+
+    public long getSnapshotSizeP50() {
+        return snapshotSizes.getPercentile(50);
+    }
+
+    public long getSnapshotSizeP99() {
+        return snapshotSizes.getPercentile(99);
+    }
+
+    public long getSnapshotDeliveryMicrosP50() {
+        return snapshotTimes.getPercentile(50) / 1000;
+    }
+
+    public long getSnapshotDeliveryMicrosP99() {
+        return snapshotTimes.getPercentile(99) / 1000;
+    }
+
+    public long getSnapshotDeliveryMicrosMax() {
+        return snapshotTimes.getMax() / 1000;
+    }
+
+    public long getLateCallDrops() {
+        return lateCallDrops.get();
+    }
+
+    public int getSubscriptions() {
+        return subscriptions.get();
+    }
+
+    public long getQueuedOrders() {
+        return queuedOrders.get();
+    }
+
+    public long getRefusedOrders() {
+        return refusedOrders.get();
+    }
+
+    public long getOrderQueueMicrosP50() {
+        return orderQueueTimes.getPercentile(50) / 1000;
+    }
+
+    public long getOrderQueueMicrosP99() {
+        return orderQueueTimes.getPercentile(99) / 1000;
+    }
+
+    public long getOrderQueueMicrosMax() {
+        return orderQueueTimes.getMax() / 1000;
+    }
+
+    public int getLivePortfolios() {
+        return feed.getLiveCount();
+    }
+
+    public int getEvictedPortfolios() {
+        return feed.getEvictedCount();
+    }
+
+    /**
+     * Returns all the metrics as text, one "name value" pair per line,
+     * with the labels in braces, as expected by the common scrapers;
+     * the portfolios with the longest queues, as found by the last tick,
+     * are also listed. No portfolio is locked.
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        long[] rates = ordersPerSecond;
+        for (int i = 0; i < orders.length; i++) {
+            line(out, "portfolio_orders_total{outcome=\"" + OUTCOME_NAMES[i] + "\"}", orders[i].get());
+        }
+        for (int i = 0; i < orders.length; i++) {
+            line(out, "portfolio_orders_per_second{outcome=\"" + OUTCOME_NAMES[i] + "\"}", rates[i]);
+        }
+        line(out, "portfolio_pending_notifications", getPendingNotifications());
+        quantiles(out, "portfolio_queue_depth", queueDepths, 1);
+        quantiles(out, "portfolio_snapshot_size", snapshotSizes, 1);
+        quantiles(out, "portfolio_snapshot_delivery_micros", snapshotTimes, 1000);
+        line(out, "portfolio_snapshots_total", getSnapshots());
+        line(out, "portfolio_late_call_drops_total", getLateCallDrops());
+        line(out, "portfolio_subscriptions", getSubscriptions());
+        line(out, "portfolio_queued_orders", getQueuedOrders());
+        line(out, "portfolio_refused_orders_total", getRefusedOrders());
+        quantiles(out, "portfolio_order_queue_micros", orderQueueTimes, 1000);
+        line(out, "portfolio_live", getLivePortfolios());
+        line(out, "portfolio_evicted", getEvictedPortfolios());
+
+        int[] deepest = new int[DEEPEST_QUEUES];
+        int[] depths = new int[DEEPEST_QUEUES];
+        int found = deepestQueues.get(deepest, depths);
+        for (int i = 0; i < found; i++) {
+            line(out, "portfolio_queue_depth_current{portfolio=\""
+                + feed.getPortfolioIds().id(deepest[i]) + "\"}", depths[i]);
+        }
+        return out.toString();
+    }
+
+    private static void quantiles(StringBuilder out, String name, Histogram histogram, long divisor) {
+        line(out, name + "{quantile=\"0.5\"}", histogram.getPercentile(50) / divisor);
+        line(out, name + "{quantile=\"0.99\"}", histogram.getPercentile(99) / divisor);
+        line(out, name + "{quantile=\"0.999\"}", histogram.getPercentile(99.9) / divisor);
+        line(out, name + "_max", histogram.getMax() / divisor);
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+}
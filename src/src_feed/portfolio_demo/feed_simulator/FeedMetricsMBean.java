@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+/**
+ * The management interface of FeedMetrics, to be exposed through JMX.
+ * Latencies are in microseconds.
+ */
+public interface FeedMetricsMBean {
+
+    public long getOrdersAccepted();
+
+    public long getOrdersRejected();
+
+    public long getOrdersOverflow();
+
+    public long getOrdersNotEnoughStock();
+
+    /**
+     * Rates over the last completed second.
+     */
+    public long getOrdersAcceptedPerSecond();
+
+    public long getOrdersRejectedPerSecond();
+
+    public long getOrdersOverflowPerSecond();
+
+    public long getOrdersNotEnoughStockPerSecond();
+
+    /**
+     * Returns the number of notifications enqueued for the
+     * listeners and not yet delivered, on all the portfolios.
+     */
+    public long getPendingNotifications();
+
+    /**
+     * Percentiles of the number of notifications pending for a
+     * portfolio, as sampled upon each new notification.
+     */
+    public long getQueueDepthP50();
+
+    public long getQueueDepthP99();
+
+    public long getQueueDepthMax();
+
+    /**
+     * Returns the number of notifications pending for a portfolio,
+     * or -1 if the portfolio is not loaded.
+     */
+    public int getQueueDepth(String portfolioId);
+
+    public long getSnapshots();
+
+    /**
+     * Percentiles of the number of positions in the snapshots.
+     */
+    public long getSnapshotSizeP50();
+
+    public long getSnapshotSizeP99();
+
+    /**
+     * Percentiles of the time between the addition of a listener
+     * and the delivery of its snapshot.
+     */
+    public long getSnapshotDeliveryMicrosP50();
+
+    public long getSnapshotDeliveryMicrosP99();
+
+    public long getSnapshotDeliveryMicrosMax();
+
+    /**
+     * Returns the number of notifications discarded by the clients
+     * of the feed because they arrived after the unsubscription.
+     */
+    public long getLateCallDrops();
+
+    public int getSubscriptions();
+
+    /**
+     * Returns the number of orders waiting in the queues, when the
+     * orders are applied asynchronously.
+     */
+    public long getQueuedOrders();
+
+    /**
+     * Returns the number of orders refused because their queue was full.
+     */
+    public long getRefusedOrders();
+
+    /**
+     * Percentiles of the time between the enqueueing of an order
+     * and its application.
+     */
+    public long getOrderQueueMicrosP50();
+
+    public long getOrderQueueMicrosP99();
+
+    public long getOrderQueueMicrosMax();
+
+    /**
+     * Returns the number of portfolios in memory.
+     */
+    public int getLivePortfolios();
+
+    public int getEvictedPortfolios();
+
+    /**
+     * Returns all the metrics as text, one per line.
+     */
+    public String dump();
+
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An index from each stock to the portfolios holding it, with the
+ * quantity held, kept along with the changes, so that the holders of a
+ * stock can be found without visiting all the portfolios.
+ * The index observes all the changes of the feed, under the lock of the
+ * portfolio; not to serialize the changes of the many portfolios holding
+ * a popular stock, the holders of each stock are split in stripes, by
+ * portfolio ordinal, each one kept in a map by portfolio ordinal, which
+ * is also the lock for the stripe, and created upon first use.
+ * Another observer can be attached to the index, to be informed of each
+ * change while the lock of the stripe is held, hence in the same order
+ * in which the index sees the changes of each stripe.
+ * The portfolios evicted by the feed are still listed, as their contents
+ * are kept as well.
+ */
+public class HoldersIndex implements PositionObserver {
+
+    /**
+     * The number of stripes for each stock; a power of 2.
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * The quantity held by each portfolio, by portfolio ordinal, for each
+     * stripe of each stock, at position stockN * STRIPES + stripe; each
+     * map is also the lock for the related stripe.
+     */
+    private final AtomicReferenceArray<Positions> stripes;
+
+    /**
+     * Informed of each change under the lock of the stripe; may be null.
+     */
+    private volatile PositionObserver stockObserver = null;
+
+    HoldersIndex(int stockCount) {
+        this.stripes = new AtomicReferenceArray<Positions>(stockCount * STRIPES);
+    }
+
+    /**
+     * Returns the stripe where the holdings of a portfolio are kept.
+     */
+    static int stripeOf(int portfolioN) {
+        return portfolioN & (STRIPES - 1);
+    }
+
+    /**
+     * Adds the positions of a portfolio that existed before the index
+     * started observing the feed.
+     */
+    void load(int portfolioN, Positions contents) {
+        for (int slot = 0; slot < contents.slots(); slot++) {
+            int stockN = contents.stockAt(slot);
+            if (stockN >= 0 && stockN < stripes.length() / STRIPES) {
+                this.onChange(portfolioN, stockN, contents.qtyAt(slot), 0);
+            }
+        }
+    }
+
+    /**
+     * Attaches the observer to be informed of each change while holding
+     * the lock of the stripe.
+     */
+    void setStockObserver(PositionObserver observer) {
+        this.stockObserver = observer;
+    }
+
+    public void onChange(int portfolioN, int stockN, int qty, int oldQty) {
+        Positions stripeHolders = this.getStripe(stockN, stripeOf(portfolioN));
+        synchronized (stripeHolders) {
+            stripeHolders.set(portfolioN, qty);
+            PositionObserver observer = stockObserver;
+            if (observer != null) {
+                observer.onChange(portfolioN, stockN, qty, oldQty);
+            }
+        }
+    }
+
+    /**
+     * Returns a stripe of the holders of a stock, by portfolio ordinal,
+     * creating it if needed; the map is live and can only be used while
+     * holding its lock, which prevents any change on the stripe.
+     */
+    Positions getStripe(int stockN, int stripe) {
+        int index = stockN * STRIPES + stripe;
+        Positions stripeHolders = stripes.get(index);
+        if (stripeHolders == null) {
+            stripes.compareAndSet(index, null, new Positions(0));
+            stripeHolders = stripes.get(index);
+        }
+        return stripeHolders;
+    }
+
+    /**
+     * Returns the ordinals of the portfolios currently holding a stock,
+     * in no particular order; the stripes are visited one at a time.
+     */
+    public int[] getHolders(int stockN) {
+        int[] portfolioNs = new int[0];
+        int count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            Positions stripeHolders = stripes.get(stockN * STRIPES + stripe);
+            if (stripeHolders == null) {
+                continue;
+            }
+            synchronized (stripeHolders) {
+                if (count + stripeHolders.size() > portfolioNs.length) {
+                    portfolioNs = Arrays.copyOf(portfolioNs, count + stripeHolders.size());
+                }
+                for (int slot = 0; slot < stripeHolders.slots(); slot++) {
+                    int portfolioN = stripeHolders.stockAt(slot);
+                    if (portfolioN >= 0) {
+                        portfolioNs[count++] = portfolioN;
+                    }
+                }
+            }
+        }
+        return count == portfolioNs.length ? portfolioNs : Arrays.copyOf(portfolioNs, count);
+    }
+
+    /**
+     * Returns the number of portfolios holding a stock.
+     */
+    public int getHolderCount(int stockN) {
+        int count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            Positions stripeHolders = stripes.get(stockN * STRIPES + stripe);
+            if (stripeHolders != null) {
+                synchronized (stripeHolders) {
+                    count += stripeHolders.size();
+                }
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A ClusterTransport between nodes that live in the same JVM, for
+ * testing: for instance, multiple Adapter Sets of the same Server, or
+ * multiple feeds created by a test. The nodes of the same cluster are
+ * matched through the "cluster_name" parameter (default "portfolio").
+ * Each message is handed over asynchronously, through a serial queue
+ * for each pair of nodes; the messages for a node not started yet
+ * are lost.
+ */
+public class LoopbackTransport implements ClusterTransport {
+
+    /**
+     * The nodes of each cluster, by cluster name.
+     */
+    private static final ConcurrentHashMap<String, LoopbackTransport[]> clusters =
+        new ConcurrentHashMap<String, LoopbackTransport[]>();
+
+    /**
+     * Threads shared by all the instances to deliver the messages.
+     */
+    private static final ExecutorService pool = Executors.newCachedThreadPool(
+        new Dispatcher.DaemonThreadFactory("Cluster loopback"));
+
+    private LoopbackTransport[] nodes;
+
+    private int node;
+
+    /**
+     * The queues of the messages from this node, by destination node.
+     */
+    private SerialExecutor[] links;
+
+    private volatile Receiver receiver;
+
+    private static final Logger logger = Logger.getLogger("LS_demos_Logger.Portfolio");
+
+    public void init(Map params, int node, int nodeCount) {
+        String name = (String) params.get("cluster_name");
+        if (name == null) {
+            name = "portfolio";
+        }
+        clusters.putIfAbsent(name, new LoopbackTransport[nodeCount]);
+        this.nodes = clusters.get(name);
+        if (nodes.length != nodeCount) {
+            throw new IllegalArgumentException("Wrong cluster_nodes for cluster " + name + ": " + nodeCount);
+        }
+        this.node = node;
+        this.links = new SerialExecutor[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            links[i] = new SerialExecutor(pool, logger);
+        }
+    }
+
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        synchronized (nodes) {
+            nodes[node] = this;
+        }
+    }
+
+    public void send(final int toNode, final String message) {
+        links[toNode].execute(new Runnable() {
+            public void run() {
+                LoopbackTransport target;
+                synchronized (nodes) {
+                    target = nodes[toNode];
+                }
+                if (target != null) {
+                    target.receiver.onMessage(node, message);
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,564 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates a synthetic flow of buy and sell orders on the portfolios of
+ * a feed, from multiple threads, to test the feed under load for a long
+ * time or to find its capacity.
+ * The orders are spread over the first portfolios and over the stocks
+ * with Zipf distributions, so that a few portfolios and stocks get most
+ * of the orders, like in real life.
+ * A listener is attached to each target portfolio, to measure the
+ * throughput of the notifications and their latency, from the submission
+ * of the order (or from the time it was scheduled, if a rate is set) to
+ * the delivery of the update; a creator supplied listener can be wrapped,
+ * to also account for the work done on each update by a client of the
+ * feed.
+ * The latencies can only be measured if the notifications are not
+ * coalesced, as each update has to be matched with the related change.
+ * The generator can be configured through a map of parameters; the
+ * following are supported:
+ * - "generator_threads": the number of threads that send the orders.
+ * - "generator_rate": the total number of orders per second; if 0 (the
+ *   default), the orders are sent as fast as possible.
+ * - "generator_portfolios": the number of target portfolios, from the
+ *   first one (default 100, or all the portfolios, if less).
+ * - "generator_portfolio_skew" and "generator_stock_skew": the exponents
+ *   of the Zipf distributions (default 1); 0 means uniform distribution.
+ * - "generator_buy_ratio": the fraction of buy orders (default 0.5).
+ * - "generator_max_qty": the maximum quantity of an order (default 500);
+ *   quantities are uniformly distributed.
+ * - "generator_duration_seconds": the time after which the generator
+ *   stops; if 0 (the default), it runs forever.
+ * - "generator_report_seconds": the interval between the reports on the
+ *   log (default 10).
+ */
+public class OrderGenerator {
+
+    /**
+     * Creates the listeners to be wrapped by the ones
+     * that measure the notifications.
+     */
+    public interface ListenerFactory {
+
+        public PortfolioListener create(String portfolioId);
+    }
+
+    /**
+     * Room for the changes not yet notified for each portfolio; if the
+     * notifications lag further behind, the exceeding ones are not measured.
+     */
+    private static final int PROBE_CAPACITY = 1024;
+
+    /**
+     * Number of changes that can be skipped to match an update;
+     * there may be changes with no update if a listener is attached
+     * while they occur.
+     */
+    private static final int PROBE_SEARCH = 16;
+
+    private final PortfolioFeedSimulator feed;
+
+    private final Logger logger;
+
+    private final int threadCount;
+
+    private final double rate;
+
+    private final double buyRatio;
+
+    private final int maxQty;
+
+    private final long durationMillis;
+
+    private final long reportMillis;
+
+    private final Zipf portfolioDistribution;
+
+    private final Zipf stockDistribution;
+
+    private final Portfolio[] targets;
+
+    private final Probe[] probes;
+
+    private final boolean measuring;
+
+    private final Histogram latencies = new Histogram();
+
+    private final Worker[] workers;
+
+    private ScheduledExecutorService reporter;
+
+    private volatile boolean running = false;
+
+    private long startNanos;
+
+    private long lastReportNanos;
+
+    private long lastReportOrders;
+
+    private long lastReportUpdates;
+
+    /**
+     * Creates the generator, configured through the supplied parameters;
+     * the target portfolios are loaded and listened to at once.
+     * @param factory supplies the listeners to be wrapped; it can be null.
+     * @throws IllegalArgumentException in case of wrong configuration.
+     */
+    public OrderGenerator(PortfolioFeedSimulator feed, Logger logger, Map params, ListenerFactory factory) {
+        this.feed = feed;
+        this.logger = logger;
+
+        long threadsParam = PortfolioFeedSimulator.getLongParam(params, "generator_threads", 1);
+        long rateParam = PortfolioFeedSimulator.getLongParam(params, "generator_rate", 0);
+        long portfoliosParam = PortfolioFeedSimulator.getLongParam(params, "generator_portfolios",
+            Math.min(100, feed.getPortfolioIds().size()));
+        long maxQtyParam = PortfolioFeedSimulator.getLongParam(params, "generator_max_qty", 500);
+        long durationSeconds = PortfolioFeedSimulator.getLongParam(params, "generator_duration_seconds", 0);
+        long reportSeconds = PortfolioFeedSimulator.getLongParam(params, "generator_report_seconds", 10);
+        double portfolioSkew = getDoubleParam(params, "generator_portfolio_skew", 1);
+        double stockSkew = getDoubleParam(params, "generator_stock_skew", 1);
+        this.buyRatio = getDoubleParam(params, "generator_buy_ratio", 0.5);
+        if (threadsParam <= 0 || threadsParam > 1024 || rateParam < 0
+                || portfoliosParam <= 0 || portfoliosParam > feed.getPortfolioIds().size()
+                || maxQtyParam <= 0 || maxQtyParam > Integer.MAX_VALUE
+                || durationSeconds < 0 || reportSeconds <= 0
+                || portfolioSkew < 0 || stockSkew < 0 || buyRatio < 0 || buyRatio > 1) {
+            throw new IllegalArgumentException("Wrong order generator configuration");
+        }
+        this.threadCount = (int) threadsParam;
+        this.rate = rateParam;
+        this.maxQty = (int) maxQtyParam;
+        this.durationMillis = durationSeconds * 1000;
+        this.reportMillis = reportSeconds * 1000;
+        this.portfolioDistribution = new Zipf((int) portfoliosParam, portfolioSkew);
+        this.stockDistribution = new Zipf(feed.getStocks().size(), stockSkew);
+
+        this.measuring = !feed.isCoalescing();
+        if (!measuring) {
+            logger.warn("Notifications are coalesced; latencies will not be measured");
+        }
+
+        // the observer is added first, so that no change that may
+        // be notified to the listeners is missed
+        this.targets = new Portfolio[(int) portfoliosParam];
+        this.probes = new Probe[targets.length];
+        for (int portfolioN = 0; portfolioN < targets.length; portfolioN++) {
+            String portfolioId = feed.getPortfolioIds().id(portfolioN);
+            probes[portfolioN] = new Probe(factory != null ? factory.create(portfolioId) : null);
+        }
+        feed.addPositionObserver(changeObserver);
+        for (int portfolioN = 0; portfolioN < targets.length; portfolioN++) {
+            targets[portfolioN] = feed.getPortfolio(portfolioN);
+            targets[portfolioN].addListener(probes[portfolioN]);
+        }
+
+        this.workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    private static double getDoubleParam(Map params, String name, double defaultValue) {
+        String value = (String) params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Starts sending the orders; the generator can only be started once.
+     */
+    public synchronized void start() {
+        if (reporter != null) {
+            throw new IllegalStateException("Order generator already started");
+        }
+        running = true;
+        startNanos = System.nanoTime();
+        lastReportNanos = startNanos;
+        for (int i = 0; i < threadCount; i++) {
+            workers[i].start();
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(
+            new Dispatcher.DaemonThreadFactory("Order generator report"));
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+        if (durationMillis > 0) {
+            reporter.schedule(new Runnable() {
+                public void run() {
+                    stop();
+                }
+            }, durationMillis, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Order generator started on " + threadCount + " threads and "
+                + targets.length + " portfolios"
+                + (rate > 0 ? ", at " + (long) rate + " orders/s" : ""));
+    }
+
+    /**
+     * Stops sending the orders and logs the final report; the listeners
+     * stay attached, hence the pending notifications are still measured
+     * if the report is asked for later.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            reporter.shutdown();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logger.info("Order generator stopped; " + getReport());
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the total number of orders sent.
+     */
+    public long getOrders() {
+        long orders = 0;
+        for (int i = 0; i < threadCount; i++) {
+            orders += workers[i].orders;
+        }
+        return orders;
+    }
+
+    /**
+     * Returns the total number of changes caused on the
+     * target portfolios, by the generator or by others.
+     */
+    public long getChanges() {
+        long changes = 0;
+        for (int i = 0; i < probes.length; i++) {
+            changes += probes[i].changes;
+        }
+        return changes;
+    }
+
+    /**
+     * Returns the total number of updates delivered for
+     * the target portfolios.
+     */
+    public long getUpdates() {
+        long updates = 0;
+        for (int i = 0; i < probes.length; i++) {
+            updates += probes[i].updates;
+        }
+        return updates;
+    }
+
+    /**
+     * Returns the latencies measured so far, in nanoseconds.
+     */
+    public Histogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns a summary of the activity since the start.
+     */
+    public String getReport() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long orders = getOrders();
+        long updates = getUpdates();
+        StringBuilder report = new StringBuilder();
+        report.append(orders).append(" orders (")
+            .append(perSecond(orders, elapsedNanos)).append("/s), ")
+            .append(getChanges()).append(" changes, ")
+            .append(updates).append(" updates (")
+            .append(perSecond(updates, elapsedNanos)).append("/s)");
+        appendLatencies(report);
+        return report.toString();
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        long orders = getOrders();
+        long updates = getUpdates();
+        StringBuilder report = new StringBuilder("Order generator: ");
+        report.append(perSecond(orders - lastReportOrders, now - lastReportNanos)).append(" orders/s, ")
+            .append(perSecond(updates - lastReportUpdates, now - lastReportNanos)).append(" updates/s; total ")
+            .append(orders).append(" orders, ")
+            .append(updates).append(" updates");
+        appendLatencies(report);
+        logger.info(report.toString());
+        lastReportNanos = now;
+        lastReportOrders = orders;
+        lastReportUpdates = updates;
+    }
+
+    private void appendLatencies(StringBuilder report) {
+        if (latencies.getCount() > 0) {
+            report.append("; latency (us) p50 ").append(latencies.getPercentile(50) / 1000)
+                .append(", p90 ").append(latencies.getPercentile(90) / 1000)
+                .append(", p99 ").append(latencies.getPercentile(99) / 1000)
+                .append(", p99.9 ").append(latencies.getPercentile(99.9) / 1000)
+                .append(", max ").append(latencies.getMax() / 1000)
+                .append(" on ").append(latencies.getCount()).append(" updates");
+        }
+    }
+
+    private static long perSecond(long count, long nanos) {
+        return nanos > 0 ? (long) (count * 1e9 / nanos) : 0;
+    }
+
+    /**
+     * Records the time of each change on the target portfolios; as it is
+     * called while holding the lock of the portfolio, the changes are
+     * recorded in the same order as the related updates are delivered.
+     */
+    private final PositionObserver changeObserver = new PositionObserver() {
+        public void onChange(int portfolioN, int stockN, int qty, int oldQty) {
+            if (portfolioN < probes.length) {
+                Thread current = Thread.currentThread();
+                long submitNanos;
+                if (current instanceof Worker) {
+                    submitNanos = ((Worker) current).submitNanos;
+                } else {
+                    submitNanos = System.nanoTime();
+                }
+                probes[portfolioN].onChange(stockN, qty, submitNanos);
+            }
+        }
+    };
+
+    /**
+     * Listens to a target portfolio and matches each update with the
+     * related change, to measure its latency.
+     * The changes are written while holding the lock of the portfolio
+     * and the updates are read by the notification task of the portfolio,
+     * hence there is a single writer and a single reader at a time.
+     */
+    private class Probe implements PortfolioListener {
+
+        private final PortfolioListener delegate;
+
+        private final long[] stamps = new long[PROBE_CAPACITY];
+
+        private final int[] keys = new int[PROBE_CAPACITY];
+
+        /**
+         * Number of changes recorded; the last PROBE_CAPACITY ones
+         * are in the arrays.
+         */
+        private volatile long changes = 0;
+
+        /**
+         * Number of changes matched or skipped by the updates.
+         */
+        private long matched = 0;
+
+        private volatile long updates = 0;
+
+        Probe(PortfolioListener delegate) {
+            this.delegate = delegate;
+        }
+
+        void onChange(int stockN, int qty, long submitNanos) {
+            int slot = (int) changes & (PROBE_CAPACITY - 1);
+            stamps[slot] = submitNanos;
+            keys[slot] = key(stockN, qty);
+            changes = changes + 1;
+        }
+
+        public void onActualStatus(Map<String, Integer> currentStatus) {
+            if (delegate != null) {
+                delegate.onActualStatus(currentStatus);
+            }
+        }
+
+        public void update(String stock, int qty, int oldQty) {
+            if (delegate != null) {
+                delegate.update(stock, qty, oldQty);
+            }
+            if (qty == oldQty) {
+                // just a revaluation
+                return;
+            }
+            long now = System.nanoTime();
+            updates = updates + 1;
+            if (measuring) {
+                this.measure(feed.getStocks().ordinal(stock), qty, now);
+            }
+        }
+
+        public void empty() {
+            if (delegate != null) {
+                delegate.empty();
+            }
+        }
+
+        private void measure(int stockN, int qty, long now) {
+            int key = key(stockN, qty);
+            long recorded = changes;
+            long limit = Math.min(recorded, matched + PROBE_SEARCH);
+            for (long n = Math.max(matched, recorded - PROBE_CAPACITY); n < limit; n++) {
+                int slot = (int) n & (PROBE_CAPACITY - 1);
+                if (keys[slot] == key) {
+                    long stamp = stamps[slot];
+                    // the slot may have been overwritten while reading it
+                    if (changes - n <= PROBE_CAPACITY) {
+                        latencies.record(now - stamp);
+                    }
+                    matched = n + 1;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int key(int stockN, int qty) {
+        return stockN * 0x9E3779B9 + qty;
+    }
+
+    /**
+     * A thread that sends orders to the target portfolios.
+     */
+    private class Worker extends Thread {
+
+        private final Random random;
+
+        /**
+         * Submission time of the order being sent, read by the
+         * observer of the changes, which runs on this thread.
+         */
+        private long submitNanos;
+
+        private volatile long orders = 0;
+
+        Worker(int index) {
+            super("Order generator " + (index + 1));
+            setDaemon(true);
+            random = new Random(index);
+        }
+
+        public void run() {
+            // the orders are scheduled at fixed intervals, regardless of
+            // how long it takes to send them, so that the latencies of
+            // the orders delayed by a slow one are also accounted for
+            long interval = rate > 0 ? (long) (1e9 * threadCount / rate) : 0;
+            long next = System.nanoTime();
+            while (running) {
+                if (interval > 0) {
+                    long now = System.nanoTime();
+                    if (next > now) {
+                        LockSupport.parkNanos(next - now);
+                        continue;
+                    }
+                    submitNanos = next;
+                    next += interval;
+                } else {
+                    submitNanos = System.nanoTime();
+                }
+
+                Portfolio portfolio = targets[portfolioDistribution.next(random)];
+                int stockN = stockDistribution.next(random);
+                int qty = 1 + random.nextInt(maxQty);
+                try {
+                    if (random.nextDouble() < buyRatio) {
+                        portfolio.buy(stockN, qty);
+                    } else {
+                        portfolio.sell(stockN, qty);
+                    }
+                } catch (Exception e) {
+                    logger.error("Unexpected error from the order generator", e);
+                }
+                orders = orders + 1;
+            }
+        }
+    }
+
+    /**
+     * Samples the integers from 0 to n-1 with a Zipf distribution, where
+     * the probability of k is proportional to 1/(k+1)^exponent, through
+     * a precomputed cumulative distribution.
+     */
+    private static class Zipf {
+
+        private final int n;
+
+        /**
+         * The cumulative distribution, or null for the uniform one.
+         */
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            this.n = n;
+            if (exponent == 0) {
+                cumulative = null;
+                return;
+            }
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            if (cumulative == null) {
+                return random.nextInt(n);
+            }
+            double p = random.nextDouble();
+            int low = 0;
+            int high = n - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] < p) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+}
@@ -17,22 +17,30 @@
 package portfolio_demo.feed_simulator;
 
 
-import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 /**
  * Manages the contents for a single portfolio.
  * The contents can be changed through "buy" and "sell" methods
- * and can be inquired through a listener; upon setting of a new listener,
- * the current contents are notified, followed by the notifications
+ * and can be inquired through listeners; upon addition of a new listener,
+ * the current contents are notified to it, followed by the notifications
  * of subsequent content changes.
- * To make it simple, a single listener is allowed at each time.
- * All methods are synchronized, but none can be blocking. The calls
- * to the listener are enqueued and send from a local thread; they may
+ * Multiple listeners are allowed; each change is enqueued once, together
+ * with the listeners that were attached at that time, and then delivered
+ * to each of them.
+ * All changes are synchronized, but none can be blocking; the validation
+ * of the orders and the logging are performed outside of the critical
+ * section, which is kept as short as possible. The calls
+ * to the listeners are enqueued and sent, in FIFO order, from a thread
+ * borrowed from a pool shared with the other portfolios; they may
  * occur just after "removeListener" has been issued.
+ * If the Dispatcher is configured for coalescing, the changes on a stock
+ * that are still pending are merged and only the net change is notified;
+ * a change that cancels a previous one (like selling all the stock
+ * just bought) may cause no notification at all.
  */
 public class Portfolio {
 
@@ -41,81 +49,487 @@ public class Portfolio {
      */
     private Logger logger;
 
+    private static final PortfolioListener[] NO_LISTENERS = new PortfolioListener[0];
+
     /**
-     * Single listener for the contents.
+     * Listeners for the contents; the array is never modified, but
+     * replaced upon each change, so that it can be shared with the
+     * pending notifications.
      */
-    private PortfolioListener listener;
+    private PortfolioListener[] listeners = NO_LISTENERS;
 
     private final String id;
 
+    /**
+     * The ordinal of the portfolio id in the portfolio symbol table.
+     */
+    private final int ordinal;
+
+    /**
+     * Informed synchronously of all the changes; may be null.
+     */
+    private final PositionObserver observer;
+
+    /**
+     * The metrics of the feed.
+     */
+    private final FeedMetrics metrics;
+
+    /**
+     * The accepted stock ids.
+     */
+    private final SymbolTable stocks;
+
     /**
      * Used to enqueue the calls to the listener.
      */
-    private final ExecutorService executor;
+    private final SerialExecutor executor;
+
+    /**
+     * The shared dispatcher.
+     */
+    private final Dispatcher dispatcher;
+
+    /**
+     * The portfolio contents; holds the quantity of each stock in the
+     * portfolio, by stock ordinal.
+     */
+    private final Positions positions = new Positions();
+
+    /**
+     * The number of accepted stocks; valid stock ordinals are below it.
+     */
+    private final int stockCount;
+
+    /**
+     * Notifications enqueued for the listener and not yet sent;
+     * the drain task swaps it with the spare buffer while sending.
+     * The buffers are only allocated when first needed, as most of the
+     * portfolios may never have listeners.
+     */
+    private Notifications pending = null;
+
+    private Notifications spare = null;
+
+    /**
+     * Whether the drain task is running or enqueued on the executor.
+     */
+    private boolean drainScheduled = false;
+
+    /**
+     * Time of the last change or listener operation; guarded by this.
+     */
+    private long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Sum of the quantities held, kept along with the changes;
+     * guarded by this.
+     */
+    private long totalShares = 0;
+
+    /**
+     * Time of the last change of the contents, or 0 if not changed
+     * since loaded; guarded by this.
+     */
+    private long lastChange = 0;
 
     /**
-     * The portfolio contents; associates stock ids with quantities;
-     * only stocks with positive quantities are included.
+     * Set when the portfolio is evicted by the feed; from then on, all
+     * the operations are redirected to the instance that the feed
+     * provides for the same ordinal.
      */
-    private final HashMap<String,Integer> quantities = new HashMap<String,Integer>();
+    private volatile PortfolioFeedSimulator retiredFrom = null;
 
-    public Portfolio(String id, Logger logger) {
+    public Portfolio(String id, int ordinal, SymbolTable stocks, Logger logger,
+            Dispatcher dispatcher, PositionObserver observer, FeedMetrics metrics) {
         this.id = id;
+        this.ordinal = ordinal;
+        this.observer = observer;
+        this.metrics = metrics;
+        this.stocks = stocks;
+        this.stockCount = stocks.size();
         this.logger = logger;
-        // create the executor for this instance;
-        // the SingleThreadExecutor ensures a FIFO behaviour
-        executor = Executors.newSingleThreadExecutor();
+        this.dispatcher = dispatcher;
+        // create the executor for this instance on top of the shared
+        // dispatcher; the SerialExecutor ensures a FIFO behaviour
+        executor = new SerialExecutor(dispatcher, logger);
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public int getOrdinal() {
+        return this.ordinal;
+    }
+
+    /**
+     * Returns a copy of the current contents, taken in constant time;
+     * its version numbers the changes applied so far.
+     */
+    public Positions getPositions() {
+        synchronized (this) {
+            if (retiredFrom == null) {
+                return positions.copy();
+            }
+        }
+        return this.successor().getPositions();
+    }
+
+    /**
+     * Returns the aggregate figures of the current contents; they are
+     * kept along with the changes, hence no scan is needed.
+     */
+    public PortfolioSummary getSummary() {
+        synchronized (this) {
+            if (retiredFrom == null) {
+                return new PortfolioSummary(positions.size(), totalShares, lastChange);
+            }
+        }
+        return this.successor().getSummary();
+    }
+
+    /**
+     * Returns the number of notifications not yet delivered.
+     */
+    synchronized int getQueueDepth() {
+        return pending != null ? pending.size : 0;
+    }
+
+    /**
+     * Returns the time of the last change or listener operation,
+     * or -1 if the portfolio has listeners, hence it is never idle.
+     */
+    synchronized long getIdleSince() {
+        return listeners.length > 0 ? -1 : lastActivity;
+    }
+
+    /**
+     * Retires the portfolio, provided that it has no listeners and no
+     * activity after the specified time; returns the contents, or null
+     * if the portfolio cannot be retired. The caller is expected to
+     * remove the instance from the feed and to keep the contents.
+     */
+    synchronized Positions retire(long idleLimit, PortfolioFeedSimulator feed) {
+        if (retiredFrom != null || listeners.length > 0 || lastActivity > idleLimit) {
+            return null;
+        }
+        retiredFrom = feed;
+        return positions.copy();
+    }
+
+    boolean isRetired() {
+        return retiredFrom != null;
+    }
+
+    /**
+     * Returns the contents of a retired portfolio, which can no longer
+     * change; the lock is still needed, as taking a copy updates
+     * the ownership of the storage.
+     */
+    synchronized Positions getRetiredPositions() {
+        assert(retiredFrom != null);
+        return positions.copy();
+    }
+
+    /**
+     * Returns the instance that replaces this one, once retired.
+     */
+    private Portfolio successor() {
+        return retiredFrom.getPortfolio(this.ordinal);
+    }
+
+    /**
+     * Sets the contents of a portfolio just created, with no listeners,
+     * as restored from a persistent storage; no notification is issued
+     * and the observer is not informed.
+     */
+    synchronized void restore(Positions restored) {
+        assert(listeners.length == 0);
+        for (int slot = 0; slot < restored.slots(); slot++) {
+            int stockN = restored.stockAt(slot);
+            if (stockN >= 0 && stockN < stockCount) {
+                totalShares += restored.qtyAt(slot) - positions.set(stockN, restored.qtyAt(slot));
+            }
+        }
+    }
+
+    /**
+     * Sets the quantity of a stock, as a change replicated from the
+     * owner of the portfolio, on a replica (see PortfolioCluster).
+     */
+    synchronized void replicate(int stockN, int qty) {
+        int oldQty = positions.get(stockN);
+        if (qty != oldQty && stockN >= 0 && stockN < stockCount) {
+            this.setQty(stockN, qty, oldQty);
+        }
+    }
+
+    /**
+     * Informs the observer of all the current contents, as if they had
+     * just been set; used for a new portfolio whose initial contents
+     * were set through restore.
+     */
+    synchronized void recordContents() {
+        if (this.observer != null) {
+            for (int slot = 0; slot < positions.slots(); slot++) {
+                int stockN = positions.stockAt(slot);
+                if (stockN >= 0) {
+                    this.observer.onChange(this.ordinal, stockN, positions.qtyAt(slot), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents with the supplied ones, as imported from a
+     * snapshot; each stock that changes is notified to the listeners and
+     * to the observer as a normal change. Stocks not accepted are ignored.
+     */
+    public void setContents(Positions newPositions) {
+        boolean retired;
+        synchronized (this) {
+            retired = (retiredFrom != null);
+            if (!retired) {
+                //first remove the stocks no longer held; we collect them
+                //first, as the map cannot be changed while iterating
+                int[] removed = new int[positions.size()];
+                int removedCount = 0;
+                for (int slot = 0; slot < positions.slots(); slot++) {
+                    int stockN = positions.stockAt(slot);
+                    if (stockN >= 0 && newPositions.get(stockN) == 0) {
+                        removed[removedCount++] = stockN;
+                    }
+                }
+                for (int i = 0; i < removedCount; i++) {
+                    this.setQty(removed[i], 0, positions.get(removed[i]));
+                }
+                //then set the new quantities
+                for (int slot = 0; slot < newPositions.slots(); slot++) {
+                    int stockN = newPositions.stockAt(slot);
+                    if (stockN >= 0 && stockN < stockCount) {
+                        int oldQty = positions.get(stockN);
+                        if (newPositions.qtyAt(slot) != oldQty) {
+                            this.setQty(stockN, newPositions.qtyAt(slot), oldQty);
+                        }
+                    }
+                }
+            }
+        }
+        if (retired) {
+            //The portfolio has been evicted in the meantime
+            this.successor().setContents(newPositions);
+            return;
+        }
+        logger.debug("Contents replaced for " + this.id);
+    }
+
+    public void buy(String stock, int qty) throws Exception {
+        this.buy(stocks.ordinal(stock), stock, qty);
+    }
+
+    public void sell(String stock, int qty) throws Exception {
+        this.sell(stocks.ordinal(stock), stock, qty);
+    }
+
+    /**
+     * Same as buy(String, int), but the stock is identified
+     * by its ordinal in the stock symbol table.
+     */
+    public void buy(int stockN, int qty) throws Exception {
+        this.buy(stockN, this.stockName(stockN), qty);
+    }
+
+    /**
+     * Same as sell(String, int), but the stock is identified
+     * by its ordinal in the stock symbol table.
+     */
+    public void sell(int stockN, int qty) throws Exception {
+        this.sell(stockN, this.stockName(stockN), qty);
+    }
+
+    private String stockName(int stockN) {
+        if (stockN < 0 || stockN >= stockCount) {
+            return "#" + stockN;
+        }
+        return stocks.id(stockN);
     }
 
-    public synchronized void buy(String stock, int qty) throws Exception {
+    private void buy(int stockN, String stock, int qty) throws Exception {
         if (qty <= 0) {
             //We can't buy 0 or less...
             logger.warn("Cannot buy " + qty + " " + stock + " for " + this.id + " use an integer greater than 0");
+            metrics.recordOrder(INVALID_ORDER);
             throw new Exception("Cannot buy " + qty + " " + stock + " for " + this.id + " use an integer greater than 0");
         }
 
-        if (!PortfolioFeedSimulator.checkStock(stock)) {
+        if (stockN < 0 || stockN >= stockCount) {
             //this stock does not exist
             logger.warn("Not valid stock to buy: " + stock);
+            metrics.recordOrder(INVALID_ORDER);
             throw new Exception("Not valid stock to buy: " + stock);
         }
 
-        logger.debug("Buying " + qty + " " + stock + " for " + this.id);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Buying " + qty + " " + stock + " for " + this.id);
+        }
         //Pass the quantity to add to the changeQty method
-        this.changeQty(stock,qty);
+        int outcome = this.changeQty(stockN,qty);
+        if (outcome == RETIRED) {
+            //The portfolio has been evicted in the meantime
+            this.successor().buy(stockN, stock, qty);
+            return;
+        }
+        metrics.recordOrder(outcome);
+        this.logOutcome(outcome, stock);
     }
 
-    public synchronized void sell(String stock, int qty) throws Exception {
+    private void sell(int stockN, String stock, int qty) throws Exception {
         if (qty <= 0) {
             //We can't sell 0 or less...
             logger.warn("Cannot sell " + qty + " " + stock + " for " + this.id + " use an integer greater than 0");
+            metrics.recordOrder(INVALID_ORDER);
             throw new Exception("Cannot sell " + qty + " " + stock + " for " + this.id + " use an integer greater than 0");
         }
 
-        if (!PortfolioFeedSimulator.checkStock(stock)) {
+        if (stockN < 0 || stockN >= stockCount) {
             //this stock does not exist
             logger.warn("Not valid stock to sell: " + stock);
+            metrics.recordOrder(INVALID_ORDER);
             throw new Exception("Not valid stock to sell: " + stock);
         }
 
-        logger.debug("Selling " + qty + " " + stock + " for " + this.id);
-        //Change the quantity sing and pass it to the changeQty method
-        this.changeQty(stock,-qty);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Selling " + qty + " " + stock + " for " + this.id);
+        }
+        //Change the quantity sign and pass it to the changeQty method
+        int outcome = this.changeQty(stockN,-qty);
+        if (outcome == RETIRED) {
+            //The portfolio has been evicted in the meantime
+            this.successor().sell(stockN, stock, qty);
+            return;
+        }
+        metrics.recordOrder(outcome);
+        this.logOutcome(outcome, stock);
+    }
+
+    /**
+     * Outcomes of the orders.
+     */
+    // the order was applied
+    public static final int CHANGED = 0;
+    // a sell order on a stock not in the portfolio; ignored
+    public static final int NO_STOCK_TO_SELL = 1;
+    // a buy order that would overflow the quantity; ignored
+    public static final int OVERFLOW = 2;
+    // a sell order for more than available; all the stock was sold
+    public static final int NOT_ENOUGH_STOCK = 3;
+    // an order with wrong stock or quantity; rejected
+    public static final int INVALID_ORDER = 4;
+    // the portfolio was evicted; to be redirected
+    private static final int RETIRED = -1;
+
+    /**
+     * Applies multiple orders at once, by acquiring the lock only once,
+     * so that the related notifications are enqueued together and, if
+     * coalescing is enabled, can be merged.
+     * The orders are expressed by stock ordinal and quantity, which is
+     * positive for buy orders and negative for sell orders.
+     * The outcome of each order is stored in the supplied array.
+     */
+    public void applyOrders(int count, int[] stockNs, int[] qtys, int[] outcomes) {
+        for (int i = 0; i < count; i++) {
+            if (stockNs[i] < 0 || stockNs[i] >= stockCount || qtys[i] == 0 || qtys[i] == Integer.MIN_VALUE) {
+                outcomes[i] = INVALID_ORDER;
+            } else {
+                outcomes[i] = CHANGED;
+            }
+        }
+        boolean retired;
+        synchronized (this) {
+            retired = (retiredFrom != null);
+            if (!retired) {
+                for (int i = 0; i < count; i++) {
+                    if (outcomes[i] == CHANGED) {
+                        outcomes[i] = this.changeQty(stockNs[i], qtys[i]);
+                    }
+                }
+            }
+        }
+        if (retired) {
+            //The portfolio has been evicted in the meantime
+            this.successor().applyOrders(count, stockNs, qtys, outcomes);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            metrics.recordOrder(outcomes[i]);
+            if (outcomes[i] == INVALID_ORDER) {
+                logger.warn("Invalid order for " + this.id + ": " + qtys[i] + " " + this.stockName(stockNs[i]));
+            } else {
+                if (logger.isDebugEnabled()) {
+                    logger.debug((qtys[i] > 0 ? "Bought " : "Sold ") + Math.abs(qtys[i]) + " " + stocks.id(stockNs[i]) + " for " + this.id);
+                }
+                this.logOutcome(outcomes[i], stocks.id(stockNs[i]));
+            }
+        }
+    }
+
+    /**
+     * Applies a corporate action to the positions in the specified stocks,
+     * by acquiring the lock only once, so that the related notifications
+     * are enqueued together, as a single burst, and, if coalescing is
+     * enabled, can be merged. Returns the number of positions changed.
+     */
+    int applyCorporateAction(int[] stockNs, CorporateAction action) {
+        int changed = 0;
+        int failed = 0;
+        boolean retired;
+        synchronized (this) {
+            retired = (retiredFrom != null);
+            if (!retired) {
+                for (int i = 0; i < stockNs.length; i++) {
+                    int oldQty = positions.get(stockNs[i]);
+                    if (oldQty == 0) {
+                        continue;
+                    }
+                    int newQty = action.newQty(stockNs[i], oldQty);
+                    if (newQty < 0) {
+                        failed++;
+                    } else if (newQty != oldQty) {
+                        this.setQty(stockNs[i], newQty, oldQty);
+                        changed++;
+                    }
+                }
+            }
+        }
+        if (retired) {
+            //The portfolio has been evicted in the meantime
+            return this.successor().applyCorporateAction(stockNs, action);
+        }
+        if (failed > 0) {
+            logger.warn(this.id + "|Corporate action not applicable; " + failed + " positions left unchanged");
+        }
+        return changed;
     }
 
-    private synchronized void changeQty(String stock, int qty) {
+    /**
+     * Applies a change and enqueues the related notification; returns the
+     * outcome, which is logged by the caller, outside of the lock.
+     */
+    private synchronized int changeQty(int stockN, int qty) {
+        if (retiredFrom != null) {
+            return RETIRED;
+        }
         //Get the old quantity for the stock
-        Integer oldQty = quantities.get(stock);
+        int oldQty = positions.get(stockN);
         int newQty;
-        if (oldQty == null) {
-            //If oldQty is null it means that we have not that stock on our portfolio
+        int outcome = CHANGED;
+        if (oldQty == 0) {
+            //If oldQty is 0 it means that we have not that stock on our portfolio
             if (qty <= 0) {
-                //We can't sell something we don't have, warn and return.
-                logger.warn(this.id+"|No stock to sell: " + stock);
-                return;
+                //We can't sell something we don't have
+                return NO_STOCK_TO_SELL;
             }
-            //Set oldQty to 0 to let the listener know that we previously didn't have such stock
-            oldQty = 0;
             //The new quantity is equal to the bought value
             newQty = qty;
 
@@ -127,104 +541,426 @@ public class Portfolio {
 
             // overflow check; just in case
             if (qty > 0 && newQty <= qty) {
-                newQty = oldQty;
-                logger.warn(this.id+"|Quantity overflow; order ignored: " + stock);
-                return;
+                return OVERFLOW;
             }
         }
 
         if (newQty < 0) {
-            //We sold more than we had
-            logger.warn(this.id+"|Not enough stock to sell: " + stock);
-            //We interpret this as "sell everything"
+            //We sold more than we had;
+            //we interpret this as "sell everything"
             newQty = 0;
+            outcome = NOT_ENOUGH_STOCK;
         }
 
-        if (newQty == 0) {
-            //If we sold everything we remove the stock from the internal structure
-            quantities.remove(stock);
-        } else {
-            //Save the actual quantity in internal structure
-            quantities.put(stock, newQty);
-        }
+        this.setQty(stockN, newQty, oldQty);
+        return outcome;
+    }
 
-        if (this.listener != null) {
-            //copy the actual listener to a constant that will be used inside the inner class
-            final PortfolioListener localListener = this.listener;
-            //copy the values to constant to be used inside the inner class
-            final int newVal = newQty;
-            final int oldVal = oldQty.intValue();
-            final String stockId = stock;
+    /**
+     * Stores a new quantity and enqueues the related notification.
+     * To be called while holding the lock.
+     */
+    private void setQty(int stockN, int newQty, int oldQty) {
+        //Save the actual quantity in internal structure;
+        //a 0 quantity means that we sold everything
+        positions.set(stockN, newQty);
+        totalShares += newQty - oldQty;
+        lastActivity = System.currentTimeMillis();
+        lastChange = lastActivity;
+
+        if (this.observer != null) {
+            this.observer.onChange(this.ordinal, stockN, newQty, oldQty);
+        }
 
-            //If we have a listener create a new Runnable to be used as a task to pass the
-            //new update to the listener
-            Runnable updateTask = new Runnable() {
-                public void run() {
-                    // call the update on the listener;
-                    // in case the listener has just been detached,
-                    // the listener should detect the case
-                    localListener.update(stockId, newVal, oldVal);
-                }
-            };
+        if (this.listeners.length > 0) {
+            //If we have listeners enqueue the update for them;
+            //the update will be passed to the listeners by the drain task
+            this.enqueue(Notifications.UPDATE, this.listeners, stockN, newQty, oldQty, null);
+        }
+    }
 
-            //We add the task on the executor to pass to the listener the actual status
-            executor.execute(updateTask);
+    private void logOutcome(int outcome, String stock) {
+        switch (outcome) {
+        case NO_STOCK_TO_SELL:
+            //We couldn't sell something we didn't have; order ignored
+            logger.warn(this.id+"|No stock to sell: " + stock);
+            break;
+        case OVERFLOW:
+            logger.warn(this.id+"|Quantity overflow; order ignored: " + stock);
+            break;
+        case NOT_ENOUGH_STOCK:
+            //We sold more than we had; everything was sold
+            logger.warn(this.id+"|Not enough stock to sell: " + stock);
+            break;
         }
     }
 
-    public synchronized void setListener(PortfolioListener newListener) {
+    public void addListener(PortfolioListener newListener) {
         if (newListener == null) {
-            //we don't accept a null parameter. to delete the actual listener
-            //the removeListener method must be used
+            //we don't accept a null parameter
+            return;
+        }
+        PortfolioListener[] singleTarget = new PortfolioListener[] { newListener };
+        boolean retired;
+        synchronized (this) {
+            retired = (retiredFrom != null);
+            if (!retired) {
+                lastActivity = System.currentTimeMillis();
+                for (int i = 0; i < listeners.length; i++) {
+                    if (listeners[i] == newListener) {
+                        //already attached
+                        return;
+                    }
+                }
+                //Add the listener, by replacing the listener array
+                PortfolioListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+                newListeners[listeners.length] = newListener;
+                this.listeners = newListeners;
+
+                //Copy the actual status of the portfolio and enqueue it for the new listener
+                //only, before any subsequent change; the copy takes constant time, as the
+                //storage is shared until the next change, which only copies what it touches,
+                //and it will be passed to the listener by the drain task as a read-only map
+                this.enqueue(Notifications.STATUS, singleTarget, 0, 0, 0, positions.copy());
+            }
+        }
+        if (retired) {
+            //The portfolio has been evicted in the meantime
+            this.successor().addListener(newListener);
             return;
         }
-        //Set the listener
-        this.listener = newListener;
-
-        logger.debug("Listener set on " + this.id);
-
-        //copy the actual listener to a final variable that will be used inside the inner class
-        final PortfolioListener localListener = newListener;
 
-        //Clone the actual status of the portfolio
-        final HashMap<String,Integer> currentStatus =
-            (HashMap<String,Integer>) quantities.clone();
+        logger.debug("Listener added on " + this.id);
+    }
 
-        //Create a new Runnable to be used as a task to pass the actual status to the listener
-        Runnable statusTask = new Runnable() {
-            public void run() {
-                // call the onActualStatus on the listener;
-                // in case the listener has just been detached,
-                // the listener should detect the case
-                localListener.onActualStatus(currentStatus);
+    public void removeListener(PortfolioListener oldListener) {
+        boolean retired;
+        synchronized (this) {
+            retired = (retiredFrom != null);
+            if (!retired) {
+                lastActivity = System.currentTimeMillis();
+                int i = 0;
+                while (i < listeners.length && listeners[i] != oldListener) {
+                    i++;
+                }
+                if (i == listeners.length) {
+                    //not attached
+                    return;
+                }
+                //remove the listener, by replacing the listener array
+                PortfolioListener[] newListeners;
+                if (listeners.length == 1) {
+                    newListeners = NO_LISTENERS;
+                } else {
+                    newListeners = new PortfolioListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, newListeners, 0, i);
+                    System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                }
+                this.listeners = newListeners;
             }
-        };
+        }
+        if (retired) {
+            //The portfolio had no listeners when evicted, but the listener
+            //may have been added through this instance in the meantime
+            this.successor().removeListener(oldListener);
+            return;
+        }
 
-        //We add the task on the executor to pass to the listener the actual status
-        executor.execute(statusTask);
+        logger.debug("Listener removed from " + this.id);
     }
 
-    public synchronized void removeListener() {
-        //remove the listener
-        this.listener = null;
+    /**
+     * Notifies the listeners that the valuation of a stock has changed,
+     * if the stock is held, through an update with unchanged quantity,
+     * which is ordered with respect to the changes of quantity.
+     */
+    void revalue(int stockN) {
+        synchronized (this) {
+            if (retiredFrom != null || listeners.length == 0) {
+                return;
+            }
+            int qty = positions.get(stockN);
+            if (qty != 0) {
+                this.enqueue(Notifications.REVALUE, this.listeners, stockN, qty, qty, null);
+            }
+        }
     }
 
     // never called in the demo, just showing the feature
-    public synchronized void empty() {
+    public void empty() {
         logger.debug("Cleaning status " + this.id);
-        
-        final PortfolioListener localListener = this.listener;
-        
-        //remove all the quantities so that the portfolio will result empty
-        quantities.clear();
-        
-        Runnable clearTask = new Runnable() {
-            public void run() {
-                localListener.empty();
-            }
-        };
-        //We add the task on the executor to pass to the listener the actual status
-        executor.execute(clearTask);
-        
+
+        boolean retired;
+        synchronized (this) {
+            retired = (retiredFrom != null);
+            if (!retired) {
+                //remove all the quantities so that the portfolio will result empty
+                if (this.observer != null) {
+                    for (int slot = 0; slot < positions.slots(); slot++) {
+                        int stockN = positions.stockAt(slot);
+                        if (stockN >= 0) {
+                            this.observer.onChange(this.ordinal, stockN, 0, positions.qtyAt(slot));
+                        }
+                    }
+                }
+                positions.clear();
+                totalShares = 0;
+                lastActivity = System.currentTimeMillis();
+                lastChange = lastActivity;
+
+                if (this.listeners.length > 0) {
+                    //We enqueue the notification to the listeners
+                    this.enqueue(Notifications.EMPTY, this.listeners, 0, 0, 0, null);
+                }
+            }
+        }
+        if (retired) {
+            //The portfolio has been evicted in the meantime
+            this.successor().empty();
+        }
+    }
+
+    /**
+     * Adds a notification to the pending ones and, if needed,
+     * schedules the drain task. To be called while holding the lock,
+     * as the aggregate figures are taken along with the notification,
+     * for the benefit of any PortfolioSummaryListener.
+     */
+    private void enqueue(int kind, PortfolioListener[] targets, int stockN, int qty, int oldQty, Positions status) {
+        if (pending == null) {
+            pending = new Notifications();
+        }
+        int size = pending.size;
+        if (kind == Notifications.UPDATE && dispatcher.isCoalescing()) {
+            pending.addOrMergeUpdate(targets, stockN, qty, oldQty, positions.size(), totalShares, lastChange);
+        } else if (kind == Notifications.REVALUE && dispatcher.isCoalescing()) {
+            pending.addOrMergeRevalue(targets, stockN, qty, positions.size(), totalShares, lastChange);
+        } else {
+            // a status is timed, to measure how long it takes to deliver it
+            long time = (kind == Notifications.STATUS) ? System.nanoTime() : 0;
+            pending.add(kind, targets, stockN, qty, oldQty, status, time, positions.size(), totalShares, lastChange);
+        }
+        if (pending.size > size) {
+            metrics.recordEnqueued(ordinal, pending.size - size, pending.size);
+        }
+        if (!drainScheduled) {
+            drainScheduled = true;
+            dispatcher.executeAfterFlushInterval(flushTask);
+        }
+    }
+
+    /**
+     * Starts the drain task once the flush interval has elapsed.
+     */
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            executor.execute(drainTask);
+        }
+    };
+
+    /**
+     * Passes the pending notifications to the listeners, in FIFO order;
+     * the notifications are taken in blocks, by swapping the buffers,
+     * so that the listeners are invoked without holding the lock.
+     * Only one instance of the task is scheduled at each time.
+     */
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            Notifications batch;
+            synchronized (Portfolio.this) {
+                batch = pending;
+                pending = spare;
+                spare = null;
+            }
+
+            // call the listeners;
+            // in case a listener has just been detached,
+            // the listener should detect the case
+            batch.deliver(stocks, logger, metrics);
+            metrics.recordDelivered(batch.size);
+            batch.clear();
+
+            synchronized (Portfolio.this) {
+                spare = batch;
+                if (pending == null || pending.size == 0) {
+                    drainScheduled = false;
+                } else {
+                    // more notifications arrived in the meantime; we don't
+                    // loop here, to leave room for the other portfolios
+                    dispatcher.executeAfterFlushInterval(flushTask);
+                }
+            }
+        }
+    };
+
+    /**
+     * A growable buffer of notifications for the listeners, stored in
+     * parallel arrays, so that enqueueing a notification allocates nothing
+     * once the buffer is large enough.
+     */
+    private static final class Notifications {
+
+        static final int UPDATE = 0;
+        static final int STATUS = 1;
+        static final int EMPTY = 2;
+        // an update cancelled by coalescing
+        static final int NONE = 3;
+        // a change in the valuation of a stock
+        static final int REVALUE = 4;
+
+        int size = 0;
+        // the updates before this position precede a status or empty
+        // notification, hence they cannot be merged with new ones
+        int mergeStart = 0;
+        int[] kinds = new int[16];
+        // the listeners of each notification; shared, as each array
+        // is never modified
+        PortfolioListener[][] targets = new PortfolioListener[16][];
+        int[] stockNs = new int[16];
+        int[] qtys = new int[16];
+        int[] oldQtys = new int[16];
+        Positions[] statuses = new Positions[16];
+        // enqueue time of each status, in nanoseconds
+        long[] times = new long[16];
+        // the aggregate figures right after each notified change
+        int[] positionCounts = new int[16];
+        long[] totalShares = new long[16];
+        long[] lastChanges = new long[16];
+
+        void add(int kind, PortfolioListener[] target, int stockN, int qty, int oldQty, Positions status, long time,
+                int positionCount, long shares, long lastChange) {
+            if (size == kinds.length) {
+                int newLength = size * 2;
+                kinds = Arrays.copyOf(kinds, newLength);
+                targets = Arrays.copyOf(targets, newLength);
+                stockNs = Arrays.copyOf(stockNs, newLength);
+                qtys = Arrays.copyOf(qtys, newLength);
+                oldQtys = Arrays.copyOf(oldQtys, newLength);
+                statuses = Arrays.copyOf(statuses, newLength);
+                times = Arrays.copyOf(times, newLength);
+                positionCounts = Arrays.copyOf(positionCounts, newLength);
+                totalShares = Arrays.copyOf(totalShares, newLength);
+                lastChanges = Arrays.copyOf(lastChanges, newLength);
+            }
+            kinds[size] = kind;
+            targets[size] = target;
+            stockNs[size] = stockN;
+            qtys[size] = qty;
+            oldQtys[size] = oldQty;
+            statuses[size] = status;
+            times[size] = time;
+            positionCounts[size] = positionCount;
+            totalShares[size] = shares;
+            lastChanges[size] = lastChange;
+            size++;
+            if (kind != UPDATE) {
+                mergeStart = size;
+            }
+        }
+
+        /**
+         * Adds an update, or merges it with a pending update on the same
+         * stock for the same listeners; the merged update goes from the
+         * older old quantity to the newer quantity, hence it vanishes if
+         * the two are equal. The figures of the merged update and of the
+         * ones that follow it are brought to the current ones, so that
+         * they never go back in time as the notifications are delivered.
+         */
+        void addOrMergeUpdate(PortfolioListener[] target, int stockN, int qty, int oldQty,
+                int positionCount, long shares, long lastChange) {
+            for (int i = size - 1; i >= mergeStart; i--) {
+                if (kinds[i] == UPDATE && stockNs[i] == stockN) {
+                    if (targets[i] != target) {
+                        // the listeners have changed in the meantime
+                        break;
+                    }
+                    assert(qtys[i] == oldQty);
+                    if (qty == oldQtys[i]) {
+                        // for instance, an ADD followed by a DELETE
+                        kinds[i] = NONE;
+                    } else {
+                        qtys[i] = qty;
+                    }
+                    for (int j = i; j < size; j++) {
+                        positionCounts[j] = positionCount;
+                        totalShares[j] = shares;
+                        lastChanges[j] = lastChange;
+                    }
+                    return;
+                }
+            }
+            add(UPDATE, target, stockN, qty, oldQty, null, 0, positionCount, shares, lastChange);
+        }
+
+        /**
+         * Adds a revaluation, unless one on the same stock for the same
+         * listeners is already pending and not followed by any change on
+         * the stock, as the listeners will get the latest valuation anyway.
+         */
+        void addOrMergeRevalue(PortfolioListener[] target, int stockN, int qty,
+                int positionCount, long shares, long lastChange) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (kinds[i] == STATUS || kinds[i] == EMPTY) {
+                    break;
+                } else if (stockNs[i] == stockN) {
+                    if (kinds[i] == REVALUE && targets[i] == target) {
+                        return;
+                    } else if (kinds[i] != NONE) {
+                        break;
+                    }
+                }
+            }
+            add(REVALUE, target, stockN, qty, qty, null, 0, positionCount, shares, lastChange);
+        }
+
+        void deliver(SymbolTable stocks, Logger logger, FeedMetrics metrics) {
+            for (int i = 0; i < size; i++) {
+                if (kinds[i] == NONE) {
+                    continue;
+                }
+                Map<String,Integer> currentStatus = null;
+                if (kinds[i] == STATUS) {
+                    // the copy of the contents is never changed, hence
+                    // it can be passed as it is
+                    currentStatus = new PositionsMap(statuses[i], stocks);
+                }
+                PortfolioListener[] listeners = targets[i];
+                for (int l = 0; l < listeners.length; l++) {
+                    try {
+                        if (listeners[l] instanceof PortfolioSummaryListener) {
+                            ((PortfolioSummaryListener) listeners[l]).setSummary(
+                                positionCounts[i], totalShares[i], lastChanges[i]);
+                        }
+                        switch (kinds[i]) {
+                        case UPDATE:
+                        case REVALUE:
+                            listeners[l].update(stocks.id(stockNs[i]), qtys[i], oldQtys[i]);
+                            break;
+                        case STATUS:
+                            listeners[l].onActualStatus(currentStatus);
+                            break;
+                        case EMPTY:
+                            listeners[l].empty();
+                            break;
+                        }
+                    } catch (RuntimeException e) {
+                        // a faulty listener must not prevent the
+                        // delivery of the subsequent notifications
+                        logger.error("Unexpected error from portfolio listener", e);
+                    }
+                }
+                if (kinds[i] == STATUS) {
+                    metrics.recordSnapshot(statuses[i].size(), System.nanoTime() - times[i]);
+                }
+            }
+        }
+
+        void clear() {
+            // release the references, to let the listeners be collected
+            Arrays.fill(targets, 0, size, null);
+            Arrays.fill(statuses, 0, size, null);
+            size = 0;
+            mergeStart = 0;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,468 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Partitions the portfolios among multiple nodes, each one running a feed
+ * with the same configuration of portfolios and stocks. Each portfolio is
+ * owned by a single node, chosen through a hash of its ordinal; the other
+ * nodes never create it, but forward the orders to the owner and, to serve
+ * their own listeners, keep a replica of it, which the owner keeps updated.
+ * A replica is an ordinary Portfolio, not known to the feed, that exists
+ * as long as it has users (see acquire and release); it is initialized
+ * from the current contents of the owned portfolio, then it receives its
+ * changes, with no revaluations, hence the valuation of a replica is not
+ * available. Forwarded orders are applied asynchronously, hence their
+ * outcome is only logged on the owner.
+ * The nodes talk through a ClusterTransport. There is no failover: if the
+ * owner of a portfolio is down, the portfolio is not available.
+ * The cluster is configured through the parameters of the feed:
+ * - "cluster_nodes": the number of nodes (default 1, which means that
+ *   all the portfolios are owned by this node);
+ * - "cluster_node": the index of this node, from 0 to cluster_nodes - 1;
+ * - "cluster_transport": the ClusterTransport, either "loopback" (the
+ *   default; see LoopbackTransport) or a class name;
+ * - "cluster_timeout_millis": how long to wait for the initial contents
+ *   of a replica (default 5000).
+ */
+public class PortfolioCluster implements ClusterTransport.Receiver {
+
+    // message types; each message is made of fields separated by '|',
+    // the first one being the type and the others integers, starting
+    // with the portfolio ordinal; stocks are identified by their
+    // ordinals as well
+    // orders for an owned portfolio, as pairs of stock and quantity,
+    // which is negative for sell orders
+    private static final char ORDERS = 'O';
+    // a request for the contents and changes of an owned portfolio
+    private static final char SUBSCRIBE = 'S';
+    private static final char UNSUBSCRIBE = 'U';
+    // the contents of a replicated portfolio, as pairs of stock and quantity
+    private static final char STATUS = 'T';
+    // a change of a replicated portfolio, as stock and new quantity
+    private static final char CHANGE = 'C';
+    // a replicated portfolio has been emptied
+    private static final char EMPTY = 'E';
+
+    private final PortfolioFeedSimulator feed;
+
+    private final Logger logger;
+
+    private final int node;
+
+    private final int nodeCount;
+
+    private final long timeoutMillis;
+
+    /**
+     * Null if there is a single node.
+     */
+    private final ClusterTransport transport;
+
+    /**
+     * The replicas of the portfolios owned by other nodes,
+     * by portfolio ordinal; changed while holding its lock.
+     */
+    private final Map<Integer, Replica> replicas = new ConcurrentHashMap<Integer, Replica>();
+
+    /**
+     * The listeners that forward the changes of the owned portfolios to
+     * the other nodes, by node and portfolio ordinal.
+     */
+    private final ConcurrentHashMap<Long, Forwarder> forwarders = new ConcurrentHashMap<Long, Forwarder>();
+
+    /**
+     * Configures the cluster and, if there are other nodes, starts
+     * the transport.
+     * @throws IllegalArgumentException in case of wrong configuration.
+     */
+    PortfolioCluster(PortfolioFeedSimulator feed, Map params, Logger logger) {
+        this.feed = feed;
+        this.logger = logger;
+        long nodesParam = PortfolioFeedSimulator.getLongParam(params, "cluster_nodes", 1);
+        long nodeParam = PortfolioFeedSimulator.getLongParam(params, "cluster_node", 0);
+        this.timeoutMillis = PortfolioFeedSimulator.getLongParam(params, "cluster_timeout_millis", 5000);
+        if (nodesParam <= 0 || nodesParam > 1024 || nodeParam < 0 || nodeParam >= nodesParam || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Wrong cluster configuration");
+        }
+        this.nodeCount = (int) nodesParam;
+        this.node = (int) nodeParam;
+
+        if (nodeCount == 1) {
+            this.transport = null;
+            return;
+        }
+        String transportParam = (String) params.get("cluster_transport");
+        if (transportParam == null || transportParam.equals("loopback")) {
+            this.transport = new LoopbackTransport();
+        } else {
+            try {
+                this.transport = (ClusterTransport) Class.forName(transportParam).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Wrong cluster_transport: " + transportParam, e);
+            }
+        }
+        transport.init(params, node, nodeCount);
+        transport.start(this);
+        logger.info("Node " + node + " of a cluster of " + nodeCount + " nodes");
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the node that owns a portfolio.
+     */
+    public int getOwner(int portfolioN) {
+        // spread consecutive ordinals
+        int h = portfolioN * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % nodeCount;
+    }
+
+    public boolean isOwned(int portfolioN) {
+        return nodeCount == 1 || getOwner(portfolioN) == node;
+    }
+
+    /**
+     * Returns a portfolio to be listened to: the portfolio itself, if
+     * owned, otherwise its replica, which is created if needed; in the
+     * latter case, the call waits for the initial contents of the replica
+     * and returns null if they don't arrive in time. Each call that
+     * succeeds has to be followed by a call to release.
+     */
+    public Portfolio acquire(int portfolioN) {
+        if (isOwned(portfolioN)) {
+            return feed.getPortfolio(portfolioN);
+        }
+        Replica replica;
+        boolean created = false;
+        synchronized (replicas) {
+            replica = replicas.get(portfolioN);
+            if (replica == null) {
+                replica = new Replica(feed.createReplica(portfolioN));
+                replicas.put(portfolioN, replica);
+                created = true;
+            }
+            replica.users++;
+        }
+        if (created) {
+            transport.send(getOwner(portfolioN), SUBSCRIBE + "|" + portfolioN);
+        }
+        boolean ready;
+        try {
+            ready = replica.ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ready = false;
+        }
+        if (!ready) {
+            logger.error("No contents received for replica of portfolio ordinal " + portfolioN
+                    + " from node " + getOwner(portfolioN));
+            this.release(portfolioN);
+            return null;
+        }
+        return replica.portfolio;
+    }
+
+    /**
+     * Returns the portfolio returned by acquire, if still in use,
+     * or null.
+     */
+    public Portfolio getAcquired(int portfolioN) {
+        if (isOwned(portfolioN)) {
+            return feed.getPortfolio(portfolioN);
+        }
+        Replica replica = replicas.get(portfolioN);
+        return replica != null ? replica.portfolio : null;
+    }
+
+    /**
+     * Declares that a portfolio obtained through acquire is no longer
+     * used; the replica of a portfolio is discarded with its last user.
+     */
+    public void release(int portfolioN) {
+        if (isOwned(portfolioN)) {
+            return;
+        }
+        synchronized (replicas) {
+            Replica replica = replicas.get(portfolioN);
+            if (replica == null || --replica.users > 0) {
+                return;
+            }
+            replicas.remove(portfolioN);
+        }
+        transport.send(getOwner(portfolioN), UNSUBSCRIBE + "|" + portfolioN);
+    }
+
+    /**
+     * Sends an order for a portfolio not owned to its owner;
+     * the quantity is negative for a sell order.
+     */
+    public void forwardOrder(int portfolioN, int stockN, int qty) {
+        transport.send(getOwner(portfolioN), ORDERS + "|" + portfolioN + "|" + stockN + "|" + qty);
+    }
+
+    /**
+     * Sends multiple orders for a portfolio not owned to its owner, in
+     * a single message, so that they will be applied together
+     * (see Portfolio.applyOrders).
+     */
+    public void forwardOrders(int portfolioN, int count, int[] stockNs, int[] qtys) {
+        StringBuilder message = new StringBuilder(16 + count * 16);
+        message.append(ORDERS).append('|').append(portfolioN);
+        for (int i = 0; i < count; i++) {
+            message.append('|').append(stockNs[i]).append('|').append(qtys[i]);
+        }
+        transport.send(getOwner(portfolioN), message.toString());
+    }
+
+    public void onMessage(int fromNode, String message) {
+        try {
+            FieldReader fields = new FieldReader(message);
+            char type = fields.nextType();
+            int portfolioN = fields.nextInt();
+            if (portfolioN < 0 || portfolioN >= feed.getPortfolioIds().size()) {
+                throw new IllegalArgumentException("wrong portfolio ordinal");
+            }
+            if ((type == ORDERS || type == SUBSCRIBE) && !isOwned(portfolioN)) {
+                throw new IllegalArgumentException("portfolio not owned");
+            }
+            switch (type) {
+            case ORDERS:
+                this.onOrders(portfolioN, fields);
+                break;
+            case SUBSCRIBE:
+                this.onSubscribe(fromNode, portfolioN);
+                break;
+            case UNSUBSCRIBE:
+                this.onUnsubscribe(fromNode, portfolioN);
+                break;
+            default:
+                this.onReplicated(type, portfolioN, fields);
+                break;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Wrong cluster message from node " + fromNode + ": " + message, e);
+        }
+    }
+
+    private void onOrders(int portfolioN, FieldReader fields) {
+        int[] stockNs = new int[4];
+        int[] qtys = new int[4];
+        int count = 0;
+        while (fields.hasNext()) {
+            if (count == stockNs.length) {
+                stockNs = Arrays.copyOf(stockNs, count * 2);
+                qtys = Arrays.copyOf(qtys, count * 2);
+            }
+            stockNs[count] = fields.nextInt();
+            qtys[count] = fields.nextInt();
+            count++;
+        }
+        feed.getPortfolio(portfolioN).applyOrders(count, stockNs, qtys, new int[count]);
+    }
+
+    private void onSubscribe(int fromNode, int portfolioN) {
+        Forwarder forwarder = new Forwarder(fromNode, portfolioN);
+        Forwarder old = forwarders.put(forwarder.key(), forwarder);
+        if (old != null) {
+            old.active = false;
+            feed.getPortfolio(portfolioN).removeListener(old);
+        }
+        feed.getPortfolio(portfolioN).addListener(forwarder);
+        logger.debug("Portfolio ordinal " + portfolioN + " replicated to node " + fromNode);
+    }
+
+    private void onUnsubscribe(int fromNode, int portfolioN) {
+        Forwarder forwarder = forwarders.remove(((long) fromNode << 32) | portfolioN);
+        if (forwarder != null) {
+            forwarder.active = false;
+            feed.getPortfolio(portfolioN).removeListener(forwarder);
+        }
+    }
+
+    private void onReplicated(char type, int portfolioN, FieldReader fields) {
+        Replica replica = replicas.get(portfolioN);
+        if (replica == null) {
+            // already released
+            return;
+        }
+        if (type == STATUS) {
+            Positions contents = new Positions();
+            while (fields.hasNext()) {
+                int stockN = fields.nextInt();
+                contents.set(stockN, fields.nextInt());
+            }
+            if (replica.ready.getCount() > 0) {
+                replica.portfolio.restore(contents);
+                replica.ready.countDown();
+            } else {
+                replica.portfolio.setContents(contents);
+            }
+        } else if (replica.ready.getCount() > 0) {
+            // a late change for a previous replica; the contents
+            // for the current one are still to come
+        } else if (type == CHANGE) {
+            int stockN = fields.nextInt();
+            replica.portfolio.replicate(stockN, fields.nextInt());
+        } else if (type == EMPTY) {
+            replica.portfolio.empty();
+        } else {
+            throw new IllegalArgumentException("unknown type");
+        }
+    }
+
+    /**
+     * A replica of a portfolio owned by another node.
+     */
+    private static class Replica {
+
+        final Portfolio portfolio;
+
+        // released when the initial contents have arrived
+        final CountDownLatch ready = new CountDownLatch(1);
+
+        // guarded by the replicas map
+        int users = 0;
+
+        Replica(Portfolio portfolio) {
+            this.portfolio = portfolio;
+        }
+    }
+
+    /**
+     * Sends the contents and the changes of an owned portfolio
+     * to a node that keeps a replica of it.
+     */
+    private class Forwarder implements PortfolioListener {
+
+        private final int toNode;
+
+        private final int portfolioN;
+
+        // cleared upon unsubscription, to discard late calls
+        private volatile boolean active = true;
+
+        Forwarder(int toNode, int portfolioN) {
+            this.toNode = toNode;
+            this.portfolioN = portfolioN;
+        }
+
+        long key() {
+            return ((long) toNode << 32) | portfolioN;
+        }
+
+        public void onActualStatus(Map<String, Integer> currentStatus) {
+            if (!active) {
+                return;
+            }
+            SymbolTable stocks = feed.getStocks();
+            StringBuilder message = new StringBuilder(16 + currentStatus.size() * 16);
+            message.append(STATUS).append('|').append(portfolioN);
+            for (Map.Entry<String, Integer> position : currentStatus.entrySet()) {
+                message.append('|').append(stocks.ordinal(position.getKey()))
+                    .append('|').append(position.getValue());
+            }
+            transport.send(toNode, message.toString());
+        }
+
+        public void update(String stock, int qty, int oldQty) {
+            if (!active || qty == oldQty) {
+                // revaluations are not replicated
+                return;
+            }
+            transport.send(toNode, CHANGE + "|" + portfolioN + "|" + feed.getStocks().ordinal(stock) + "|" + qty);
+        }
+
+        public void empty() {
+            if (active) {
+                transport.send(toNode, EMPTY + "|" + portfolioN);
+            }
+        }
+    }
+
+    /**
+     * Reads the fields of a message in a single pass, without splitting it;
+     * malformed fields cause an IllegalArgumentException.
+     */
+    private static class FieldReader {
+
+        private final String message;
+
+        private int pos = 0;
+
+        FieldReader(String message) {
+            this.message = message;
+        }
+
+        boolean hasNext() {
+            return pos < message.length();
+        }
+
+        /**
+         * Reads the type, as the first field, made of a single character.
+         */
+        char nextType() {
+            if (message.length() < 2 || message.charAt(1) != '|') {
+                throw new IllegalArgumentException("wrong message type");
+            }
+            pos = 2;
+            return message.charAt(0);
+        }
+
+        int nextInt() {
+            int length = message.length();
+            int i = pos;
+            boolean negative = i < length && message.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            int start = i;
+            // accumulated as a negative value, so that the minimum
+            // integer can be represented
+            int value = 0;
+            for (; i < length && message.charAt(i) != '|'; i++) {
+                int digit = message.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10) {
+                    throw new IllegalArgumentException("wrong number at " + pos);
+                }
+                value = value * 10 - digit;
+            }
+            if (i == start || (!negative && value == Integer.MIN_VALUE)) {
+                throw new IllegalArgumentException("wrong number at " + pos);
+            }
+            // skip the separator
+            pos = i + 1;
+            return negative ? value : -value;
+        }
+    }
+
+}
@@ -17,20 +17,86 @@
 package portfolio_demo.feed_simulator;
 
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 
 /**
  * Simulates an external data feed that provides the contents of multiple
- * stock portfolios. Only 5 portfolios of names "portfolio1" to "portfolio5"
- * are currently accepted.
+ * stock portfolios. By default, 10 portfolios of names "portfolio1" to
+ * "portfolio10" are accepted, holding 30 stocks of names "item1" to
+ * "item30"; both universes can be configured.
  * The managed portfolios are initialized with random content. Each portfolio
- * is initialized only when needed, then it is kept permanently.
+ * is initialized only when needed (or upon startup, if so configured),
+ * then it is kept permanently, unless eviction is configured.
  * The feed provides the clients with a single bean for each managed portfolio,
  * which can be used either to listen to the contents
  * or to notify buy/sell orders.
+ * The notifications of all the portfolios are dispatched by a single pool
+ * of threads, sized on the available cores.
+ * The feed can be configured through a map of parameters; the following
+ * are supported:
+ * - "portfolios": the number of accepted portfolio ids (default 10).
+ * - "stocks": the number of accepted stock ids (default 30).
+ * - "stock_file": a text file which lists the accepted stock ids, one per
+ *   line (empty lines and lines starting with '#' are ignored); if set,
+ *   "stocks" is ignored.
+ * - "random_seed": the seed for the random initial contents of the
+ *   portfolios, which depend only on it and on the portfolio; if missing,
+ *   a random seed is used (and logged).
+ * - "prepopulate": the range of portfolios to be created upon startup, in
+ *   parallel, as "first-last" (like "1-1000") or as a count from the first
+ *   one; if missing, each portfolio is created when first needed.
+ * - "flush_millis": enables the coalescing of the notifications of the
+ *   changes on the same stock, with the specified flush interval
+ *   (see Dispatcher); if missing, every change is notified.
+ * - "journal_dir": enables the persistence of the portfolio contents in the
+ *   specified directory (see PortfolioJournal); the contents are then
+ *   restored upon startup, rather than initialized with random content;
+ *   "journal_flush_millis" (default 10) sets the group commit interval,
+ *   "snapshot_interval_seconds" (default 300) sets the interval between
+ *   snapshots and "journal_segment_mb" (default 64) the size of each
+ *   journal file.
+ * - "price_source": enables the valuation of the portfolios (see
+ *   ValuationEngine), with prices from the specified PriceSource, either
+ *   "simulated" (see SimulatedPriceSource) or a class name.
+ * - "max_portfolios" and "portfolio_idle_seconds": enable the eviction of
+ *   the portfolios with no listeners, when they are more than the maximum
+ *   or have been idle for longer than the specified time; the contents
+ *   of an evicted portfolio are kept in compact form (or not kept at all,
+ *   if they are still the random initial ones, which can be regenerated)
+ *   and the portfolio is reloaded upon the next subscription or order.
+ * The contents of all the portfolios can also be exported to a file
+ * and imported back (see PortfolioSnapshot).
+ * Runtime metrics on the orders, the notifications and the portfolios
+ * are collected (see FeedMetrics).
+ * The portfolios can be partitioned among multiple feeds, on different
+ * nodes, each one owning a part of them (see PortfolioCluster); then
+ * "prepopulate" only creates the ones owned.
+ * Corporate actions, like splits and delistings, can be applied to all
+ * the positions in a stock in bulk; the holders of the stock are found
+ * by visiting all the portfolios, unless the holders of each stock are
+ * indexed (see HoldersIndex), which is configured through
+ * "holders_index" and is always the case when the portfolios are valued.
  */
 public class PortfolioFeedSimulator {
 
@@ -40,135 +106,1031 @@ public class PortfolioFeedSimulator {
     private final Logger logger;
 
     /**
-     * Map of portfolios.
+     * Accepted portfolio ids; we accept portfolioN where N is
+     * a number between 1 and the configured number.
      */
-    private final ConcurrentHashMap<String,Portfolio> portfolios =
-        new ConcurrentHashMap<String,Portfolio>();
+    private final SymbolTable portfolioIds;
+
+    /**
+     * Accepted stock ids; we accept itemN where N is a number between
+     * 1 and the configured number, or the ids listed in a file.
+     */
+    private final SymbolTable stocks;
+
+    /**
+     * The portfolios, indexed by portfolio ordinal;
+     * each one is created when first needed.
+     */
+    private final AtomicReferenceArray<Portfolio> portfolios;
+
+    /**
+     * Threads shared by all the portfolios to send the notifications
+     * to their listeners.
+     */
+    private final Dispatcher dispatcher;
+
+    /**
+     * The persistent storage of the portfolio contents, if configured;
+     * null otherwise.
+     */
+    private final PortfolioJournal journal;
+
+    /**
+     * Takes the periodic samples of the metrics.
+     */
+    private final ScheduledExecutorService metricsTimer;
+
+    /**
+     * Takes the periodic snapshots on the journal, if configured;
+     * null otherwise.
+     */
+    private final ScheduledExecutorService checkpointer;
+
+    /**
+     * Informed of every change on every portfolio; it includes
+     * the journal, if configured.
+     */
+    private final PositionObservers observers = new PositionObservers();
+
+    /**
+     * Finds the holders of each stock, if configured or needed by the
+     * valuation; null otherwise. It observes all the changes.
+     */
+    private final HoldersIndex holders;
+
+    /**
+     * Values the portfolios, if configured; null otherwise.
+     */
+    private final ValuationEngine valuation;
+
+    /**
+     * The runtime metrics of this feed.
+     */
+    private final FeedMetrics metrics = new FeedMetrics(this);
+
+    /**
+     * Tells which portfolios are owned by this feed and connects it
+     * to the other nodes, if any.
+     */
+    private final PortfolioCluster cluster;
+
+    /**
+     * Seed for the random initial contents of the portfolios.
+     */
+    private final long seed;
+
+    /**
+     * Number of portfolios currently in the portfolios array.
+     */
+    private final AtomicInteger liveCount = new AtomicInteger();
+
+    /**
+     * Eviction policy; 0 means no limit.
+     */
+    private final int maxPortfolios;
+
+    private final long idleMillis;
+
+    /**
+     * Applies the eviction policy, if any; null otherwise.
+     */
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * The contents of the evicted portfolios, by portfolio ordinal, in the
+     * compact form of PortfolioSnapshot.pack; an empty array is used for
+     * portfolios evicted with their initial contents, which can be
+     * regenerated. Each array is a distinct instance, so that an entry
+     * can be removed only by who put it.
+     */
+    private final ConcurrentHashMap<Integer, byte[]> evicted = new ConcurrentHashMap<Integer, byte[]>();
 
     public PortfolioFeedSimulator(Logger logger) {
-        this.logger = logger;
+        this(logger, Collections.EMPTY_MAP, null);
     }
 
-    public Portfolio getPortfolio(String portfolioId) {
-        //Check the portfolioId to see if it's a valid one
-        if (!checkPortfolio(portfolioId)) {
-            logger.warn("Wrong portfolio ID: " + portfolioId);
-            return null;
+    /**
+     * Creates the feed, configured through the supplied parameters;
+     * relative paths are resolved against configDir, if supplied.
+     * @throws IllegalArgumentException in case of wrong configuration.
+     */
+    public PortfolioFeedSimulator(Logger logger, Map params, File configDir) {
+        this.logger = logger;
+
+        long portfolioCount = getLongParam(params, "portfolios", 10);
+        if (portfolioCount <= 0 || portfolioCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Wrong portfolios: " + portfolioCount);
+        }
+        this.portfolioIds = new SymbolTable("portfolio", (int) portfolioCount);
+        this.portfolios = new AtomicReferenceArray<Portfolio>(portfolioIds.size());
+
+        String stockFileParam = (String) params.get("stock_file");
+        if (stockFileParam != null) {
+            File stockFile = new File(stockFileParam);
+            if (!stockFile.isAbsolute() && configDir != null) {
+                stockFile = new File(configDir, stockFileParam);
+            }
+            try {
+                this.stocks = new SymbolTable(readStockFile(stockFile));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read " + stockFile + ": " + e.getMessage(), e);
+            }
+        } else {
+            long stockCount = getLongParam(params, "stocks", 30);
+            if (stockCount <= 0 || stockCount > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Wrong stocks: " + stockCount);
+            }
+            this.stocks = new SymbolTable("item", (int) stockCount);
+        }
+        logger.info("Accepting " + portfolioIds.size() + " portfolios and "
+                + stocks.size() + " stocks");
+
+        String seedParam = (String) params.get("random_seed");
+        if (seedParam != null) {
+            this.seed = getLongParam(params, "random_seed", 0);
+        } else {
+            this.seed = new Random().nextLong();
+        }
+        // logged, so that the same contents can be obtained again
+        logger.info("Random seed: " + seed);
+
+        long flushMillis = Dispatcher.NO_COALESCING;
+        if (params.get("flush_millis") != null) {
+            flushMillis = getLongParam(params, "flush_millis", 0);
+            if (flushMillis < 0) {
+                throw new IllegalArgumentException("Negative flush_millis: " + flushMillis);
+            }
+            logger.info("Coalescing notifications with flush interval of " + flushMillis + " ms");
+        }
+        this.dispatcher = new Dispatcher(Runtime.getRuntime().availableProcessors(), flushMillis);
+
+        this.metricsTimer = Executors.newSingleThreadScheduledExecutor(
+            new Dispatcher.DaemonThreadFactory("Portfolio metrics"));
+        metricsTimer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                metrics.tick();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        String journalParam = (String) params.get("journal_dir");
+        if (journalParam != null) {
+            File journalDir = new File(journalParam);
+            if (!journalDir.isAbsolute() && configDir != null) {
+                journalDir = new File(configDir, journalParam);
+            }
+            long journalFlushMillis = getLongParam(params, "journal_flush_millis", 10);
+            long snapshotSeconds = getLongParam(params, "snapshot_interval_seconds", 300);
+            long segmentMb = getLongParam(params, "journal_segment_mb", 64);
+            if (journalFlushMillis <= 0 || snapshotSeconds <= 0 || segmentMb <= 0 || segmentMb >= 2048) {
+                throw new IllegalArgumentException("Wrong journal configuration");
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                this.journal = new PortfolioJournal(journalDir, (int) (segmentMb << 20), journalFlushMillis, logger);
+                observers.add(journal);
+                this.restore(journal.recover(portfolioIds.size(), stocks.size()));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot recover the journal in " + journalDir + ": " + e.getMessage(), e);
+            }
+            logger.info("Portfolio contents recovered from " + journalDir + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+
+            // take a snapshot soon, to compact the recovered state,
+            // then periodically
+            this.checkpointer = Executors.newSingleThreadScheduledExecutor(
+                new Dispatcher.DaemonThreadFactory("Portfolio checkpoint"));
+            checkpointer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkpoint();
+                }
+            }, 0, snapshotSeconds, TimeUnit.SECONDS);
+        } else {
+            this.journal = null;
+            this.checkpointer = null;
+        }
+
+        long maxParam = getLongParam(params, "max_portfolios", 0);
+        long idleSeconds = getLongParam(params, "portfolio_idle_seconds", 0);
+        if (maxParam < 0 || maxParam > Integer.MAX_VALUE || idleSeconds < 0) {
+            throw new IllegalArgumentException("Wrong eviction configuration");
+        }
+        this.maxPortfolios = (int) maxParam;
+        this.idleMillis = idleSeconds * 1000;
+        if (maxPortfolios > 0 || idleMillis > 0) {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(
+                new Dispatcher.DaemonThreadFactory("Portfolio evictor"));
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdlePortfolios();
+                }
+            }, EVICTION_CHECK_MILLIS, EVICTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            logger.info("Evicting idle portfolios; maximum: " + maxPortfolios
+                    + ", idle time: " + idleSeconds + " s");
+        } else {
+            this.evictor = null;
         }
 
-        //Get the portfolio by id from the portfolios map
-        Portfolio portfolio = portfolios.get(portfolioId);
-        if (portfolio != null) {
-            //If the portfolio is already available return it
-            return portfolio;
+        // the index keeps a second copy of every position, hence it is
+        // only kept if requested or needed by the valuation; the portfolios
+        // restored so far are indexed at once, the next ones will be
+        // observed upon creation
+        String priceSourceParam = (String) params.get("price_source");
+        String holdersParam = (String) params.get("holders_index");
+        if (holdersParam != null && !holdersParam.equals("true") && !holdersParam.equals("false")) {
+            throw new IllegalArgumentException("Wrong holders_index: " + holdersParam);
+        }
+        if (priceSourceParam != null || "true".equals(holdersParam)) {
+            this.holders = new HoldersIndex(stocks.size());
+            for (int portfolioN = 0; portfolioN < portfolios.length(); portfolioN++) {
+                Positions contents = currentState.getPositions(portfolioN);
+                if (contents != null) {
+                    holders.load(portfolioN, contents);
+                }
+            }
+            observers.add(holders);
         } else {
-            //If the portfolio is not yet available we will create it
-            //We have to synchronize to avoid conflict with other thread that
-            //need to create the same portfolio
-            synchronized (this) {
-                //Check again if the portfolio is available in case another thread created it
-                //while we were waiting for the lock
-                portfolio = portfolios.get(portfolioId);
-                if (portfolio == null) {
-                    //If no such portfolio exists we create a new portfolio
-                    portfolio = new Portfolio(portfolioId,logger);
+            this.holders = null;
+        }
 
-                    //We need to generate an actual status of the portfolio to avoid starting with
-                    //an empty one. Some random quantity will do the trick.
-                    addRandomQuantities(portfolio);
+        if (priceSourceParam != null) {
+            PriceSource priceSource;
+            if (priceSourceParam.equals("simulated")) {
+                priceSource = new SimulatedPriceSource();
+            } else {
+                try {
+                    priceSource = (PriceSource) Class.forName(priceSourceParam).getDeclaredConstructor().newInstance();
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Wrong price_source: " + priceSourceParam, e);
+                }
+            }
+            priceSource.init(params, stocks);
+
+            // the changes reach the engine through the index
+            this.valuation = new ValuationEngine(this, holders, stocks.size(), portfolioIds.size());
+            holders.setStockObserver(valuation);
+            priceSource.start(valuation);
+            logger.info("Valuing portfolios with prices from " + priceSourceParam);
+        } else {
+            this.valuation = null;
+        }
 
-                    //Add the new portfolio to the list of available portfolios
-                    portfolios.put(portfolioId, portfolio);
+        // the other nodes may send requests as soon as the cluster is
+        // started, hence all the rest has to be ready
+        this.cluster = new PortfolioCluster(this, params, logger);
 
-                    logger.info(portfolioId + " created");
+        String prepopulateParam = (String) params.get("prepopulate");
+        if (prepopulateParam != null) {
+            int first;
+            int last;
+            try {
+                int dash = prepopulateParam.indexOf('-');
+                if (dash < 0) {
+                    first = 1;
+                    last = Integer.parseInt(prepopulateParam.trim());
+                } else {
+                    first = Integer.parseInt(prepopulateParam.substring(0, dash).trim());
+                    last = Integer.parseInt(prepopulateParam.substring(dash + 1).trim());
                 }
-                //Return the portfolio
-                return portfolio;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Wrong prepopulate: " + prepopulateParam);
+            }
+            if (first < 1 || last < first || last > portfolioIds.size()) {
+                throw new IllegalArgumentException("Wrong prepopulate: " + prepopulateParam);
             }
+            this.prepopulate(first - 1, last);
         }
     }
 
     /**
-     * Creates a random initial status for the portfolio.
+     * Creates the portfolios with ordinals in the specified range, if not
+     * already available and owned by this node, in parallel on all the
+     * cores; as the initial contents depend only on the seed, the result
+     * is repeatable.
      */
-    private static void addRandomQuantities(Portfolio portfolio) {
-        Random generator = new Random();
+    private void prepopulate(int from, int to) {
+        long start = System.currentTimeMillis();
+        int before = liveCount.get();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new PrepopulateTask(from, to));
+        } finally {
+            pool.shutdown();
+        }
+        logger.info((liveCount.get() - before) + " portfolios prepopulated in "
+                + (System.currentTimeMillis() - start) + " ms on "
+                + pool.getParallelism() + " threads");
+    }
+
+    /**
+     * Creates a range of portfolios, by splitting it in halves
+     * until it is small enough.
+     */
+    private class PrepopulateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int THRESHOLD = 1024;
 
-        boolean[] used = new boolean[30];
-        for (int i = 0; i < 30; i++) {
-            used[i] = false;
+        private final int from;
+
+        private final int to;
+
+        PrepopulateTask(int from, int to) {
+            this.from = from;
+            this.to = to;
         }
 
-        //we start with 6-8 stocks
-        int stocks = 6+generator.nextInt(3);
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int portfolioN = from; portfolioN < to; portfolioN++) {
+                    if (cluster.isOwned(portfolioN)) {
+                        getPortfolio(portfolioN);
+                    }
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PrepopulateTask(from, middle), new PrepopulateTask(middle, to));
+            }
+        }
+    }
 
-        for (int i = 1; i <= stocks; i++) {
+    /**
+     * Applies a corporate action to all the positions in the specified
+     * stocks, identified by their ordinals; the holders are found through
+     * the index, if any, or by visiting the current contents of all the
+     * portfolios, and the action is applied to each of them in parallel on
+     * all the cores, with a single burst of notifications per portfolio.
+     * The evicted portfolios involved are reloaded. The portfolios that
+     * acquire the stocks while the action is in progress may not be
+     * involved. Returns the number of portfolios changed.
+     */
+    public int applyCorporateAction(int[] stockNs, CorporateAction action) {
+        long start = System.currentTimeMillis();
+        int[] portfolioNs;
+        if (holders == null) {
+            portfolioNs = this.scanHolders(stockNs);
+        } else if (stockNs.length == 1) {
+            portfolioNs = holders.getHolders(stockNs[0]);
+        } else {
+            // a portfolio holding more than one of the stocks is visited once
+            int count = 0;
+            int[][] lists = new int[stockNs.length][];
+            for (int i = 0; i < stockNs.length; i++) {
+                lists[i] = holders.getHolders(stockNs[i]);
+                count += lists[i].length;
+            }
+            portfolioNs = new int[count];
+            count = 0;
+            for (int i = 0; i < lists.length; i++) {
+                System.arraycopy(lists[i], 0, portfolioNs, count, lists[i].length);
+                count += lists[i].length;
+            }
+            Arrays.sort(portfolioNs);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || portfolioNs[i] != portfolioNs[unique - 1]) {
+                    portfolioNs[unique++] = portfolioNs[i];
+                }
+            }
+            portfolioNs = Arrays.copyOf(portfolioNs, unique);
+        }
 
-            int stockN;
-            do {
-                //We need a stock number between 0 and 29
-                stockN = generator.nextInt(30);
-            } while (used[stockN]); //We need a stockId that's not been already used for this portfolio
-            //Sign that we've used this stock number
-            used[stockN] = true;
+        AtomicInteger changed = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new CorporateActionTask(portfolioNs, 0, portfolioNs.length, stockNs, action, changed));
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("Corporate action applied to " + changed.get() + " of "
+                + portfolioNs.length + " portfolios in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return changed.get();
+    }
 
-            //The stock id will be itemN where N is a number between 1 and 30
-            String item = "item"+(stockN+1);
+    /**
+     * Returns the ordinals of the portfolios holding any of the specified
+     * stocks, in increasing order, by visiting the current contents of all
+     * the portfolios created, including the evicted ones; used when the
+     * holders are not indexed.
+     */
+    private int[] scanHolders(int[] stockNs) {
+        int[] portfolioNs = new int[16];
+        int count = 0;
+        for (int portfolioN = 0; portfolioN < portfolios.length(); portfolioN++) {
+            Positions contents = currentState.getPositions(portfolioN);
+            if (contents == null) {
+                continue;
+            }
+            for (int i = 0; i < stockNs.length; i++) {
+                if (contents.get(stockNs[i]) > 0) {
+                    if (count == portfolioNs.length) {
+                        portfolioNs = Arrays.copyOf(portfolioNs, count * 2);
+                    }
+                    portfolioNs[count++] = portfolioN;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(portfolioNs, count);
+    }
 
-            //The initial quantity will be between 100 and 2500
-            int qty = generator.nextInt(25)+1;
-            qty *= 100;
+    /**
+     * Applies a corporate action to a range of portfolios, by splitting
+     * it in halves until it is small enough.
+     */
+    private class CorporateActionTask extends RecursiveAction {
 
-            //Use the buy method to initialize the status
-            try {
-                portfolio.buy(item, qty);
-            } catch (Exception e) {
-                // should never happen here
+        private static final long serialVersionUID = 1L;
+
+        private static final int THRESHOLD = 256;
+
+        private final int[] portfolioNs;
+
+        private final int from;
+
+        private final int to;
+
+        private final int[] stockNs;
+
+        private final CorporateAction action;
+
+        private final AtomicInteger changed;
+
+        CorporateActionTask(int[] portfolioNs, int from, int to, int[] stockNs, CorporateAction action, AtomicInteger changed) {
+            this.portfolioNs = portfolioNs;
+            this.from = from;
+            this.to = to;
+            this.stockNs = stockNs;
+            this.action = action;
+            this.changed = changed;
+        }
+
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    if (getPortfolio(portfolioNs[i]).applyCorporateAction(stockNs, action) > 0) {
+                        count++;
+                    }
+                }
+                changed.addAndGet(count);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CorporateActionTask(portfolioNs, from, middle, stockNs, action, changed),
+                    new CorporateActionTask(portfolioNs, middle, to, stockNs, action, changed));
             }
         }
     }
 
     /**
-     * Performs a simple hard-coded portfolio id validation;
-     * we accept portfolioN where N is a number between 1 and 10.
+     * Splits a stock, by turning each oldShares shares held into newShares
+     * shares, rounded down (a reverse split is obtained with newShares
+     * smaller than oldShares); the positions that would overflow are left
+     * unchanged. Returns the number of portfolios changed.
      */
-    public static boolean checkPortfolio(String portfolio) {
-        if (portfolio.indexOf("portfolio") != 0) {
-            return false;
+    public int splitStock(String stock, final int newShares, final int oldShares) {
+        if (newShares <= 0 || oldShares <= 0) {
+            throw new IllegalArgumentException("Wrong split ratio: " + newShares + ":" + oldShares);
+        }
+        logger.info("Splitting " + stock + " " + newShares + ":" + oldShares);
+        return this.applyCorporateAction(new int[] { this.stockOrdinal(stock) }, new CorporateAction() {
+            public int newQty(int stockN, int qty) {
+                long newQty = (long) qty * newShares / oldShares;
+                return newQty > Integer.MAX_VALUE ? -1 : (int) newQty;
+            }
+        });
+    }
+
+    /**
+     * Removes a stock from all the portfolios.
+     * Returns the number of portfolios changed.
+     */
+    public int delistStock(String stock) {
+        logger.info("Delisting " + stock);
+        return this.applyCorporateAction(new int[] { this.stockOrdinal(stock) }, new CorporateAction() {
+            public int newQty(int stockN, int qty) {
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Sells the specified percentage of each position in a stock,
+     * rounded up, so that 100 sells everything.
+     * Returns the number of portfolios changed.
+     */
+    public int liquidateStock(String stock, final int percent) {
+        if (percent <= 0 || percent > 100) {
+            throw new IllegalArgumentException("Wrong liquidation percentage: " + percent);
+        }
+        logger.info("Liquidating " + percent + "% of " + stock);
+        return this.applyCorporateAction(new int[] { this.stockOrdinal(stock) }, new CorporateAction() {
+            public int newQty(int stockN, int qty) {
+                long sold = ((long) qty * percent + 99) / 100;
+                return (int) (qty - sold);
+            }
+        });
+    }
+
+    private int stockOrdinal(String stock) {
+        int stockN = stocks.ordinal(stock);
+        if (stockN < 0) {
+            throw new IllegalArgumentException("Wrong stock ID: " + stock);
+        }
+        return stockN;
+    }
+
+    private static final long EVICTION_CHECK_MILLIS = 1000;
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Reads the stock ids from a file, one per line.
+     */
+    private static String[] readStockFile(File file) throws IOException {
+        ArrayList<String> ids = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    ids.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (ids.isEmpty()) {
+            throw new IOException("No stock ids found");
+        }
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    static long getLongParam(Map params, String name, long defaultValue) {
+        String value = (String) params.get(name);
+        if (value == null) {
+            return defaultValue;
         }
-        int stNum;
         try {
-            stNum = Integer.parseInt(portfolio.substring(9));
+            return Long.parseLong(value);
         } catch (NumberFormatException e) {
-            return false;
+            throw new IllegalArgumentException("Wrong " + name + ": " + value);
         }
-        if (stNum <= 0 || stNum > 10) {
-            return false;
+    }
+
+    /**
+     * Creates the portfolios found in a recovered state.
+     */
+    private void restore(Positions[] state) {
+        int count = 0;
+        for (int portfolioN = 0; portfolioN < state.length; portfolioN++) {
+            if (state[portfolioN] != null) {
+                Portfolio portfolio = new Portfolio(portfolioIds.id(portfolioN), portfolioN,
+                    stocks, logger, dispatcher, observers, metrics);
+                portfolio.restore(state[portfolioN]);
+                portfolios.set(portfolioN, portfolio);
+                liveCount.incrementAndGet();
+                count++;
+            }
         }
+        logger.info(count + " portfolios restored");
+    }
 
-        return true;
+    /**
+     * Provides the current contents of the portfolios already created,
+     * including the evicted ones, without reloading them.
+     */
+    private final PortfolioSnapshot.Source currentState = new PortfolioSnapshot.Source() {
+        public int size() {
+            return portfolios.length();
+        }
+        public Positions getPositions(int portfolioN) {
+            Portfolio portfolio = portfolios.get(portfolioN);
+            if (portfolio != null) {
+                return portfolio.getPositions();
+            }
+            byte[] packed = evicted.get(portfolioN);
+            if (packed == null) {
+                return null;
+            } else if (packed.length == 0) {
+                return randomPositions(portfolioN);
+            } else {
+                return PortfolioSnapshot.unpack(packed);
+            }
+        }
+    };
+
+    /**
+     * Saves a snapshot of all the portfolios on the journal.
+     */
+    private void checkpoint() {
+        try {
+            journal.checkpoint(currentState, stocks.size());
+        } catch (IOException e) {
+            logger.error("Cannot save a portfolio snapshot", e);
+        } catch (RuntimeException e) {
+            // don't stop the periodic task
+            logger.error("Unexpected error while saving a portfolio snapshot", e);
+        }
     }
 
     /**
-     * Performs a simple hard-coded stock id validation;
-     * We accept itemN where N is a number between 1 and 30.
-     * NOTE that also the Portfolio class is aware about
-     * the way the stock id are composed.
+     * Stops the background threads of the feed and, if the contents are
+     * persisted, forces the journal to disk, after waiting for the end of
+     * an eviction or a snapshot in progress; to be called upon shutdown. The changes
+     * applied afterwards are still recorded, but no longer forced.
      */
-    public static boolean checkStock(String stock) {
-        if (stock.indexOf("item") != 0) {
-            return false;
+    public void close() {
+        stop(metricsTimer);
+        if (evictor != null) {
+            stop(evictor);
+        }
+        if (journal != null) {
+            stop(checkpointer);
+            journal.close();
         }
-        int stNum;
+        logger.info("Portfolio feed closed");
+    }
+
+    /**
+     * Stops a periodic task, by waiting for the end of its current run.
+     */
+    private void stop(ScheduledExecutorService executor) {
+        executor.shutdown();
         try {
-            stNum = Integer.parseInt(stock.substring(4));
-        } catch (NumberFormatException e) {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Periodic task still running after " + CLOSE_TIMEOUT_SECONDS + " s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the contents of all the portfolios created so far on a file,
+     * in the format of PortfolioSnapshot; the portfolios are taken one by
+     * one, hence the file may not reflect a single point in time.
+     * Returns the number of portfolios exported.
+     */
+    public int exportState(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        FileChannel out = new FileOutputStream(file).getChannel();
+        int count;
+        try {
+            count = PortfolioSnapshot.write(out, stocks.size(), currentState);
+        } finally {
+            out.close();
+        }
+        logger.info(count + " portfolios exported to " + file + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * Replaces the contents of the portfolios found in a file written by
+     * exportState; the portfolios not in the file are left untouched.
+     * The changes are notified to the listeners as normal changes.
+     * The file is read twice: the first time it is only verified, so that
+     * a corrupted file leaves the state untouched. Portfolios and stocks
+     * not accepted by this feed are ignored.
+     * Returns the number of portfolios imported.
+     */
+    public int importState(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        FileChannel in = new FileInputStream(file).getChannel();
+        int count;
+        try {
+            PortfolioSnapshot.read(in, new PortfolioSnapshot.Visitor() {
+                public void onHeader(int stockCount, int portfolioCount) {
+                }
+                public void onPortfolio(int portfolioN, int[] stockNs, int[] qtys, int count) throws IOException {
+                    for (int i = 0; i < count; i++) {
+                        if (qtys[i] < 0) {
+                            throw new IOException("Negative quantity for portfolio ordinal " + portfolioN);
+                        }
+                    }
+                }
+            });
+
+            in.position(0);
+            count = PortfolioSnapshot.read(in, new PortfolioSnapshot.Visitor() {
+                public void onHeader(int stockCount, int portfolioCount) {
+                    if (stockCount != stocks.size() || portfolioCount != portfolios.length()) {
+                        logger.warn("Importing portfolios for a different configuration: "
+                                + portfolioCount + " portfolios and " + stockCount + " stocks");
+                    }
+                }
+                public void onPortfolio(int portfolioN, int[] stockNs, int[] qtys, int count) {
+                    if (portfolioN >= portfolios.length()) {
+                        return;
+                    }
+                    Positions contents = new Positions(count);
+                    for (int i = 0; i < count; i++) {
+                        contents.set(stockNs[i], qtys[i]);
+                    }
+                    getPortfolio(portfolioN, false).setContents(contents);
+                }
+            });
+        } finally {
+            in.close();
+        }
+        logger.info(count + " portfolios imported from " + file + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * Returns the symbol table of the accepted stock ids.
+     */
+    public SymbolTable getStocks() {
+        return stocks;
+    }
+
+    /**
+     * Returns the symbol table of the accepted portfolio ids.
+     */
+    public SymbolTable getPortfolioIds() {
+        return portfolioIds;
+    }
+
+    /**
+     * Returns the cluster this feed belongs to; if there is a single
+     * node, all the portfolios are owned by this feed.
+     */
+    public PortfolioCluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Returns the index of the holders of each stock,
+     * or null if the holders are not indexed.
+     */
+    public HoldersIndex getHolders() {
+        return holders;
+    }
+
+    /**
+     * Returns the valuation engine, or null if no price source
+     * is configured.
+     */
+    public ValuationEngine getValuation() {
+        return valuation;
+    }
+
+    /**
+     * Returns the runtime metrics of this feed.
+     */
+    public FeedMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Creates a portfolio with no contents, not known to this feed,
+     * to be used as a replica of a portfolio owned by another node.
+     */
+    Portfolio createReplica(int portfolioN) {
+        return new Portfolio(portfolioIds.id(portfolioN), portfolioN, stocks, logger, dispatcher, null, metrics);
+    }
+
+    /**
+     * Returns the portfolio with the specified ordinal only if it is
+     * in memory, without loading it.
+     */
+    Portfolio getLoadedPortfolio(int portfolioN) {
+        return portfolios.get(portfolioN);
+    }
+
+    int getLiveCount() {
+        return liveCount.get();
+    }
+
+    int getEvictedCount() {
+        return evicted.size();
+    }
+
+    /**
+     * Adds an observer of all the changes on all the portfolios;
+     * see PositionObserver for the constraints on the implementation.
+     */
+    public void addPositionObserver(PositionObserver observer) {
+        observers.add(observer);
+    }
+
+    public void removePositionObserver(PositionObserver observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Tells whether the notifications of the changes may be coalesced.
+     */
+    boolean isCoalescing() {
+        return dispatcher.isCoalescing();
+    }
+
+    public Portfolio getPortfolio(String portfolioId) {
+        //Check the portfolioId to see if it's a valid one
+        int portfolioN = portfolioIds.ordinal(portfolioId);
+        if (portfolioN < 0) {
+            logger.warn("Wrong portfolio ID: " + portfolioId);
+            return null;
+        }
+        return getPortfolio(portfolioN);
+    }
+
+    /**
+     * Returns the portfolio with the specified ordinal,
+     * which is supposed to be valid.
+     */
+    public Portfolio getPortfolio(int portfolioN) {
+        return getPortfolio(portfolioN, true);
+    }
+
+    /**
+     * Returns the portfolio with the specified ordinal; if it has to be
+     * created, it is initialized with random content only if requested.
+     */
+    private Portfolio getPortfolio(int portfolioN, boolean randomContent) {
+        //Get the portfolio by ordinal from the portfolios array
+        Portfolio portfolio = portfolios.get(portfolioN);
+        while (portfolio == null || portfolio.isRetired()) {
+            //If the portfolio is not available (or has just been evicted) we
+            //will create it; the new portfolio is prepared without holding any
+            //lock and then published, unless another thread was faster
+            String portfolioId = portfolioIds.id(portfolioN);
+            Portfolio created = new Portfolio(portfolioId,portfolioN,stocks,logger,dispatcher,observers,metrics);
+
+            byte[] packed = null;
+            if (portfolio != null) {
+                //The portfolio is being evicted; we can take over its contents
+                created.restore(portfolio.getRetiredPositions());
+            } else {
+                packed = evicted.get(portfolioN);
+                if (packed == null) {
+                    if (randomContent) {
+                        //We need to generate an actual status of the portfolio to avoid starting with
+                        //an empty one. Some random quantity will do the trick.
+                        created.restore(randomPositions(portfolioN));
+                    }
+                } else if (packed.length == 0) {
+                    //The portfolio was evicted with its initial contents
+                    created.restore(randomPositions(portfolioN));
+                } else {
+                    //The portfolio was evicted with changed contents
+                    created.restore(PortfolioSnapshot.unpack(packed));
+                }
+            }
+
+            //We hold the lock of the new portfolio while publishing it, so that
+            //its initial contents are recorded before any change
+            synchronized (created) {
+                if (portfolios.compareAndSet(portfolioN, portfolio, created)) {
+                    if (portfolio == null && packed == null && randomContent) {
+                        created.recordContents();
+                    }
+                    if (packed != null) {
+                        evicted.remove(portfolioN, packed);
+                    }
+                    if (portfolio == null) {
+                        liveCount.incrementAndGet();
+                    }
+                    if (portfolio != null || packed != null) {
+                        logger.debug(portfolioId + " reloaded");
+                    } else {
+                        logger.debug(portfolioId + " created");
+                    }
+                    return created;
+                }
+            }
+            //Another thread has created or evicted the portfolio in the meantime
+            portfolio = portfolios.get(portfolioN);
+        }
+        //If the portfolio is already available return it
+        return portfolio;
+    }
+
+    /**
+     * Evicts the portfolios with no listeners that have been idle for
+     * longer than the configured time, then, if the portfolios are still
+     * more than the configured maximum, the ones idle for longer.
+     */
+    private void evictIdlePortfolios() {
+        try {
+            this.evictIdlePortfolios(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            // don't stop the periodic task
+            logger.error("Unexpected error while evicting portfolios", e);
+        }
+    }
+
+    private void evictIdlePortfolios(long now) {
+        int count = 0;
+        int[] candidates = new int[16];
+        long[] idleSinces = new long[16];
+        for (int portfolioN = 0; portfolioN < portfolios.length(); portfolioN++) {
+            Portfolio portfolio = portfolios.get(portfolioN);
+            if (portfolio == null) {
+                continue;
+            }
+            long idleSince = portfolio.getIdleSince();
+            if (idleSince < 0) {
+                //it has listeners
+                continue;
+            }
+            if (count == candidates.length) {
+                candidates = Arrays.copyOf(candidates, count * 2);
+                idleSinces = Arrays.copyOf(idleSinces, count * 2);
+            }
+            candidates[count] = portfolioN;
+            idleSinces[count] = idleSince;
+            count++;
+        }
+
+        long idleLimit = idleMillis > 0 ? now - idleMillis : Long.MIN_VALUE;
+        int excess = maxPortfolios > 0 ? liveCount.get() - maxPortfolios : 0;
+        if (excess > 0) {
+            //we also evict the "excess" portfolios idle for longer
+            long[] sorted = Arrays.copyOf(idleSinces, count);
+            Arrays.sort(sorted);
+            if (excess <= count) {
+                idleLimit = Math.max(idleLimit, sorted[excess - 1]);
+            } else if (count > 0) {
+                idleLimit = Math.max(idleLimit, sorted[count - 1]);
+            }
+        }
+
+        int evictedCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (idleSinces[i] <= idleLimit && this.evict(candidates[i], idleLimit)) {
+                evictedCount++;
+            }
+        }
+        if (evictedCount > 0) {
+            logger.info(evictedCount + " idle portfolios evicted; " + liveCount.get() + " left");
+        }
+    }
+
+    /**
+     * Removes a portfolio, provided that it is still idle, and keeps its
+     * contents in compact form, or not at all, if they are still the
+     * initial ones, which can be regenerated.
+     * Only called by the evictor thread, hence evictions never overlap.
+     */
+    private boolean evict(int portfolioN, long idleLimit) {
+        Portfolio portfolio = portfolios.get(portfolioN);
+        if (portfolio == null) {
             return false;
         }
-        if (stNum <= 0 || stNum > 30) {
+        Positions contents = portfolio.retire(idleLimit, this);
+        if (contents == null) {
+            //it is no longer idle
             return false;
         }
-
+        byte[] packed;
+        if (contents.equals(randomPositions(portfolioN))) {
+            packed = new byte[0];
+        } else {
+            packed = PortfolioSnapshot.pack(contents);
+        }
+        evicted.put(portfolioN, packed);
+        if (!portfolios.compareAndSet(portfolioN, portfolio, null)) {
+            //another thread has already replaced it, by taking over its contents
+            evicted.remove(portfolioN, packed);
+            return false;
+        }
+        liveCount.decrementAndGet();
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * Generates the random initial status for a portfolio; it depends
+     * only on the portfolio ordinal and the seed of this feed, hence
+     * it can be regenerated at any time.
+     */
+    private Positions randomPositions(int portfolioN) {
+        Random generator = new Random(seed + portfolioN);
+
+        //we start with 6-8 stocks
+        int stockCount = Math.min(6+generator.nextInt(3), stocks.size());
+
+        Positions positions = new Positions(stockCount);
+        for (int i = 1; i <= stockCount; i++) {
+
+            int stockN;
+            do {
+                //We need a valid stock ordinal
+                stockN = generator.nextInt(stocks.size());
+            } while (positions.get(stockN) != 0); //We need a stockId that's not been already used for this portfolio
+
+            //The initial quantity will be between 100 and 2500
+            int qty = generator.nextInt(25)+1;
+            qty *= 100;
+
+            positions.set(stockN, qty);
+        }
+        return positions;
+    }
+
+}
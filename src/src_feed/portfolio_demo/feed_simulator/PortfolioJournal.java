@@ -0,0 +1,464 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persists the portfolio contents in a directory, through an append-only
+ * journal of all the changes, plus periodic snapshots of the whole state.
+ * The journal is written on memory-mapped files of fixed size, called
+ * generations; each record holds portfolio ordinal, stock ordinal and
+ * new quantity, so that replaying it multiple times is harmless.
+ * Records are forced to disk by a background thread at a fixed interval,
+ * so that a single sync covers all the records written in the meantime
+ * (group commit); records written after the last sync may be lost.
+ * The writers take no lock: each one reserves the room for its record
+ * by an atomic add; the same background thread also maps the next
+ * generation in advance, so that a writer which fills a generation only
+ * has to switch to the next one.
+ * A snapshot is taken by switching to a new generation first, then by
+ * collecting the portfolios one by one; the snapshot file takes the
+ * number of the new generation and, once complete, makes all the older
+ * files useless. Upon recovery, the latest complete snapshot is loaded
+ * and only the journal generations from its number on are replayed.
+ */
+public class PortfolioJournal implements PositionObserver {
+
+    private static final int JOURNAL_MAGIC = 0x50464a31; // "PFJ1"
+
+    private static final int HEADER_SIZE = 4;
+
+    private static final int RECORD_SIZE = 12;
+
+    private static final String JOURNAL_PREFIX = "journal.";
+
+    private static final String SNAPSHOT_PREFIX = "snapshot.";
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final Logger logger;
+
+    /**
+     * The generation being written; null until the recovery.
+     */
+    private volatile Segment current;
+
+    /**
+     * The generation that will follow the current one, if already
+     * mapped; guarded by this.
+     */
+    private Segment spare;
+
+    /**
+     * The generations replaced since the last sync, still to be forced;
+     * guarded by this.
+     */
+    private final ArrayList<Segment> retired = new ArrayList<Segment>();
+
+    /**
+     * Forces the records to disk periodically and maps the next
+     * generation in advance.
+     */
+    private final Thread flusher;
+
+    public PortfolioJournal(File dir, int segmentSize, final long flushMillis, Logger logger) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.logger = logger;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+
+        this.flusher = new Thread("Portfolio journal flusher") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(flushMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sync();
+                    prepareSpare();
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Rebuilds the state from the latest snapshot and the subsequent
+     * journal generations; the returned array is indexed by portfolio
+     * ordinal and holds the contents of the portfolios found.
+     * Then it opens a new journal generation.
+     * To be called before any change is recorded.
+     */
+    public Positions[] recover(int portfolioCount, int stockCount) throws IOException {
+        Positions[] state = new Positions[portfolioCount];
+
+        TreeSet<Integer> journals = listGenerations(JOURNAL_PREFIX);
+        TreeSet<Integer> snapshots = listGenerations(SNAPSHOT_PREFIX);
+
+        int first = 0;
+        int last = -1;
+        if (!snapshots.isEmpty()) {
+            first = snapshots.last();
+            last = first;
+            readSnapshot(new File(dir, SNAPSHOT_PREFIX + first), state, stockCount);
+        }
+        for (Integer gen : journals.tailSet(first)) {
+            replayJournal(new File(dir, JOURNAL_PREFIX + gen), state, stockCount);
+            last = gen;
+        }
+
+        current = openSegment(last + 1);
+        return state;
+    }
+
+    public void onChange(int portfolioN, int stockN, int qty, int oldQty) {
+        append(portfolioN, stockN, qty);
+    }
+
+    /**
+     * Appends a record; called while holding the lock of the portfolio,
+     * hence the records of a portfolio are written in order, whereas the
+     * records of different portfolios may be completed in any order.
+     */
+    public void append(int portfolioN, int stockN, int qty) {
+        Segment segment = current;
+        int pos = segment.reserve();
+        while (pos < 0) {
+            try {
+                segment = switchFrom(segment);
+            } catch (IOException e) {
+                // we cannot stop the portfolio; the change will not survive
+                logger.error("Cannot open a new journal generation; change not recorded", e);
+                return;
+            }
+            pos = segment.reserve();
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(pos + 4, stockN);
+        buffer.putInt(pos + 8, qty);
+        // a 0 marks a free record, hence we store the ordinal plus 1,
+        // and we store it last
+        buffer.putInt(pos, portfolioN + 1);
+        if (!segment.dirty) {
+            segment.dirty = true;
+        }
+    }
+
+    /**
+     * Forces the records written so far to disk.
+     */
+    public void sync() {
+        Segment[] old;
+        synchronized (this) {
+            old = retired.toArray(new Segment[retired.size()]);
+        }
+        for (Segment segment : old) {
+            // a writer which reserved its record before the switch may
+            // still be completing it; in that case, we will force the
+            // generation again upon the next sync
+            if (!segment.force()) {
+                synchronized (this) {
+                    retired.remove(segment);
+                }
+            }
+        }
+        Segment segment = current;
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Stops the background thread and forces the records written so far
+     * to disk; the records written afterwards are still stored, but no
+     * longer forced.
+     */
+    public void close() {
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    /**
+     * Takes a snapshot of the state provided and removes the files
+     * that it makes useless.
+     */
+    public void checkpoint(PortfolioSnapshot.Source source, int stockCount) throws IOException {
+        int snapshotGen = switchFrom(current).generation;
+        prepareSpare();
+        writeSnapshot(snapshotGen, source, stockCount);
+        deleteBefore(snapshotGen);
+    }
+
+    /**
+     * Replaces the specified generation, if still the current one, with
+     * the next one; the latter is normally mapped in advance, otherwise
+     * it is mapped here. Returns the new current generation.
+     */
+    private Segment switchFrom(Segment full) throws IOException {
+        synchronized (this) {
+            if (current != full) {
+                return current;
+            }
+            if (spare != null) {
+                current = spare;
+                spare = null;
+                retired.add(full);
+                return current;
+            }
+        }
+        // the flusher is late; other writers which find the generation
+        // full may map the same file, which is harmless
+        Segment next = openSegment(full.generation + 1);
+        synchronized (this) {
+            if (current == full) {
+                current = next;
+                retired.add(full);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Maps the generation that will follow the current one, if not
+     * already done; the lock is only taken to publish it.
+     */
+    private void prepareSpare() {
+        int gen;
+        synchronized (this) {
+            if (spare != null || current == null) {
+                return;
+            }
+            gen = current.generation + 1;
+        }
+        Segment next;
+        try {
+            next = openSegment(gen);
+        } catch (IOException e) {
+            logger.warn("Cannot prepare the next journal generation", e);
+            return;
+        }
+        synchronized (this) {
+            // if the current generation has changed meanwhile, ours may
+            // already be in use, otherwise it will be prepared again
+            if (spare == null && current.generation + 1 == gen) {
+                spare = next;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot, by taking the portfolios one by one
+     * (see PortfolioSnapshot); it is written on a temporary file
+     * and renamed when complete.
+     */
+    private void writeSnapshot(int gen, PortfolioSnapshot.Source source, int stockCount) throws IOException {
+        long start = System.currentTimeMillis();
+        File tmpFile = new File(dir, SNAPSHOT_PREFIX + gen + ".tmp");
+        FileChannel out = new FileOutputStream(tmpFile).getChannel();
+        int count;
+        try {
+            count = PortfolioSnapshot.write(out, stockCount, source);
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        File snapshotFile = new File(dir, SNAPSHOT_PREFIX + gen);
+        if (!tmpFile.renameTo(snapshotFile)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + snapshotFile);
+        }
+        logger.info("Portfolio snapshot " + gen + " written with " + count + " portfolios in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void readSnapshot(File file, final Positions[] state, final int stockCount) throws IOException {
+        FileChannel in = new FileInputStream(file).getChannel();
+        int count;
+        try {
+            count = PortfolioSnapshot.read(in, new PortfolioSnapshot.Visitor() {
+                public void onHeader(int fileStockCount, int portfolioCount) {
+                }
+                public void onPortfolio(int p, int[] stockNs, int[] qtys, int positions) {
+                    if (p >= state.length) {
+                        return;
+                    }
+                    Positions contents = new Positions(positions);
+                    for (int i = 0; i < positions; i++) {
+                        if (stockNs[i] < stockCount) {
+                            contents.set(stockNs[i], qtys[i]);
+                        }
+                    }
+                    state[p] = contents;
+                }
+            });
+        } catch (IOException e) {
+            throw new IOException("Wrong snapshot file " + file + ": " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+        logger.info("Portfolio snapshot " + file.getName() + " loaded with " + count + " portfolios");
+    }
+
+    private void replayJournal(File file, Positions[] state, int stockCount) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        int count = 0;
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.limit() < HEADER_SIZE || in.getInt(0) != JOURNAL_MAGIC) {
+                logger.warn("Wrong journal file " + file + "; ignored");
+                return;
+            }
+            // records reserved and not completed leave free records
+            // among the others, which we skip
+            for (int pos = HEADER_SIZE; pos + RECORD_SIZE <= in.limit(); pos += RECORD_SIZE) {
+                int p = in.getInt(pos) - 1;
+                if (p < 0) {
+                    continue;
+                }
+                int s = in.getInt(pos + 4);
+                int qty = in.getInt(pos + 8);
+                if (p < state.length && s < stockCount) {
+                    if (state[p] == null) {
+                        state[p] = new Positions();
+                    }
+                    state[p].set(s, qty);
+                }
+                count++;
+            }
+        } finally {
+            raf.close();
+        }
+        logger.info("Portfolio journal " + file.getName() + " replayed with " + count + " changes");
+    }
+
+    /**
+     * Creates and maps the file of a journal generation.
+     */
+    private Segment openSegment(int gen) throws IOException {
+        File file = new File(dir, JOURNAL_PREFIX + gen);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            // the mapping stays valid after the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+        buffer.putInt(0, JOURNAL_MAGIC);
+        return new Segment(gen, buffer);
+    }
+
+    private void deleteBefore(int gen) {
+        for (Integer old : listGenerations(JOURNAL_PREFIX).headSet(gen)) {
+            new File(dir, JOURNAL_PREFIX + old).delete();
+        }
+        for (Integer old : listGenerations(SNAPSHOT_PREFIX).headSet(gen)) {
+            new File(dir, SNAPSHOT_PREFIX + old).delete();
+        }
+    }
+
+    private TreeSet<Integer> listGenerations(String prefix) {
+        TreeSet<Integer> gens = new TreeSet<Integer>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        gens.add(Integer.valueOf(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // temporary or unrelated file
+                    }
+                }
+            }
+        }
+        return gens;
+    }
+
+    /**
+     * A mapped journal generation.
+     */
+    private static class Segment {
+
+        final int generation;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * The position of the next record to be reserved; it may grow
+         * past the end, when the generation is full.
+         */
+        private final AtomicInteger next = new AtomicInteger(HEADER_SIZE);
+
+        /**
+         * Whether records have been written since the last sync.
+         */
+        volatile boolean dirty = true;
+
+        Segment(int generation, MappedByteBuffer buffer) {
+            this.generation = generation;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns the position of a new record, or -1 if full.
+         */
+        int reserve() {
+            if (next.get() > buffer.capacity() - RECORD_SIZE) {
+                return -1;
+            }
+            int pos = next.getAndAdd(RECORD_SIZE);
+            return pos <= buffer.capacity() - RECORD_SIZE ? pos : -1;
+        }
+
+        /**
+         * Forces the records written so far to disk;
+         * returns false if there were none.
+         */
+        boolean force() {
+            if (!dirty) {
+                return false;
+            }
+            dirty = false;
+            buffer.force();
+            return true;
+        }
+    }
+
+}
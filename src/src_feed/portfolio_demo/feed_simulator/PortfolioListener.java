@@ -36,7 +36,9 @@ public interface PortfolioListener {
     /**
      * Called on each new update on the state of the portfolio.
      * If oldQty is 0 means that the stock wasn't on the portfolio before;
-     * if qty is 0 means that the stock was completely sold from the portfolio.
+     * if qty is 0 means that the stock was completely sold from the portfolio;
+     * if qty and oldQty are equal means that only the valuation of the stock
+     * has changed (see ValuationEngine).
      */
     public void update(String stock, int qty, int oldQty);
     
@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the contents of many portfolios in a compact binary
+ * format, in a streaming way, so that the whole state never needs to be
+ * held in memory.
+ * The format (version 1) is made of:
+ * - a header: the "PFSN" magic, a version byte, the number of stocks
+ *   and the number of portfolio ordinals;
+ * - one record for each non-null portfolio, in increasing ordinal order:
+ *   the difference between its ordinal and the previous one (the first
+ *   one is taken relative to -1), the number of positions, and, for each
+ *   position, in increasing stock ordinal order, the difference between
+ *   its stock ordinal and the previous one (again relative to -1) and
+ *   the quantity;
+ * - a 0 as end marker;
+ * - the CRC32 of all the previous bytes, as a 4-byte big-endian integer.
+ * All numbers but the CRC are unsigned varints (7 bits per byte, least
+ * significant group first); quantities are zigzag encoded first.
+ */
+public class PortfolioSnapshot {
+
+    /**
+     * Provides the state to be written.
+     */
+    public interface Source {
+
+        /**
+         * Returns the number of portfolio ordinals.
+         */
+        public int size();
+
+        /**
+         * Returns a copy of the contents of the specified portfolio,
+         * or null if the portfolio doesn't exist.
+         */
+        public Positions getPositions(int portfolioN);
+    }
+
+    /**
+     * Receives the state read.
+     */
+    public interface Visitor {
+
+        /**
+         * Called at first with the header contents.
+         */
+        public void onHeader(int stockCount, int portfolioCount) throws IOException;
+
+        /**
+         * Called for each portfolio; the arrays hold its positions
+         * in their first "count" elements and are reused for the
+         * next portfolio.
+         */
+        public void onPortfolio(int portfolioN, int[] stockNs, int[] qtys, int count) throws IOException;
+    }
+
+    private static final int MAGIC = 0x5046534e; // "PFSN"
+
+    private static final byte VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Room for a portfolio header (two varints) or a position.
+     */
+    private static final int MAX_ITEM_SIZE = 10;
+
+    /**
+     * Writes the state provided on a channel; returns the number of
+     * portfolios written. The channel is not closed.
+     */
+    public static int write(WritableByteChannel channel, int stockCount, Source source) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        putVarint(buffer, stockCount);
+        putVarint(buffer, source.size());
+
+        int count = 0;
+        int prevPortfolioN = -1;
+        int[] stockNs = new int[16];
+        int[] qtys = new int[16];
+        for (int p = 0; p < source.size(); p++) {
+            Positions contents = source.getPositions(p);
+            if (contents == null) {
+                continue;
+            }
+            if (contents.size() > stockNs.length) {
+                stockNs = new int[contents.size()];
+                qtys = new int[contents.size()];
+            }
+            int positions = contents.sorted(stockNs, qtys);
+            ensureRoom(channel, buffer, crc);
+            putVarint(buffer, p - prevPortfolioN);
+            putVarint(buffer, positions);
+            int prevStockN = -1;
+            for (int i = 0; i < positions; i++) {
+                ensureRoom(channel, buffer, crc);
+                putVarint(buffer, stockNs[i] - prevStockN);
+                putVarint(buffer, zigzag(qtys[i]));
+                prevStockN = stockNs[i];
+            }
+            prevPortfolioN = p;
+            count++;
+        }
+        ensureRoom(channel, buffer, crc);
+        putVarint(buffer, 0);
+        flush(channel, buffer, crc);
+
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a state from a channel, by passing it to the visitor;
+     * returns the number of portfolios read. The checksum is verified
+     * at the end, hence, in case of corruption, the visitor may have
+     * received wrong data before the IOException is thrown.
+     * The channel is not closed.
+     */
+    public static int read(ReadableByteChannel channel, Visitor visitor) throws IOException {
+        Reader in = new Reader(channel);
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a portfolio snapshot");
+        }
+        int version = in.getByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported portfolio snapshot version: " + version);
+        }
+        int stockCount = in.getVarint();
+        int portfolioCount = in.getVarint();
+        visitor.onHeader(stockCount, portfolioCount);
+
+        int[] stockNs = new int[16];
+        int[] qtys = new int[16];
+        int count = 0;
+        int portfolioN = -1;
+        int delta;
+        while ((delta = in.getVarint()) != 0) {
+            portfolioN += delta;
+            int positions = in.getVarint();
+            if (positions > stockNs.length) {
+                if (positions > stockCount) {
+                    throw new IOException("Corrupted portfolio snapshot");
+                }
+                stockNs = new int[positions];
+                qtys = new int[positions];
+            }
+            int stockN = -1;
+            for (int i = 0; i < positions; i++) {
+                stockN += in.getVarint();
+                stockNs[i] = stockN;
+                qtys[i] = unzigzag(in.getVarint());
+            }
+            visitor.onPortfolio(portfolioN, stockNs, qtys, positions);
+            count++;
+        }
+
+        int expected = (int) in.getChecksum();
+        if (in.getInt() != expected) {
+            throw new IOException("Portfolio snapshot checksum mismatch");
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the contents of a single portfolio like the positions of
+     * a record; used to keep the contents of a portfolio in a compact form.
+     */
+    static byte[] pack(Positions contents) {
+        int[] stockNs = new int[contents.size()];
+        int[] qtys = new int[contents.size()];
+        int positions = contents.sorted(stockNs, qtys);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_ITEM_SIZE * (positions + 1));
+        putVarint(buffer, positions);
+        int prevStockN = -1;
+        for (int i = 0; i < positions; i++) {
+            putVarint(buffer, stockNs[i] - prevStockN);
+            putVarint(buffer, zigzag(qtys[i]));
+            prevStockN = stockNs[i];
+        }
+        byte[] packed = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, packed, 0, packed.length);
+        return packed;
+    }
+
+    /**
+     * Decodes the contents encoded by pack.
+     */
+    static Positions unpack(byte[] packed) {
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        int positions = getVarint(buffer);
+        Positions contents = new Positions(positions);
+        int stockN = -1;
+        for (int i = 0; i < positions; i++) {
+            stockN += getVarint(buffer);
+            contents.set(stockN, unzigzag(getVarint(buffer)));
+        }
+        return contents;
+    }
+
+    private static void ensureRoom(WritableByteChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        if (buffer.remaining() < MAX_ITEM_SIZE) {
+            flush(channel, buffer, crc);
+        }
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Buffered reader of a channel, which keeps the CRC32
+     * of the bytes consumed.
+     */
+    private static class Reader {
+
+        private final ReadableByteChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private final CRC32 crc = new CRC32();
+
+        Reader(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        int getByte() throws IOException {
+            if (!buffer.hasRemaining()) {
+                refill();
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        int getInt() throws IOException {
+            return (getByte() << 24) | (getByte() << 16) | (getByte() << 8) | getByte();
+        }
+
+        int getVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = getByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupted portfolio snapshot");
+        }
+
+        /**
+         * Returns the CRC32 of the bytes consumed so far.
+         */
+        long getChecksum() {
+            crc.update(buffer.array(), 0, buffer.position());
+            // what is left in the buffer has not been accounted for yet
+            buffer.compact();
+            buffer.flip();
+            return crc.getValue();
+        }
+
+        private void refill() throws IOException {
+            crc.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            buffer.flip();
+            if (read < 0) {
+                throw new EOFException("Truncated portfolio snapshot");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+/**
+ * Aggregate figures of a portfolio at some point in time.
+ */
+public class PortfolioSummary {
+
+    private final int positionCount;
+
+    private final long totalShares;
+
+    private final long lastChange;
+
+    PortfolioSummary(int positionCount, long totalShares, long lastChange) {
+        this.positionCount = positionCount;
+        this.totalShares = totalShares;
+        this.lastChange = lastChange;
+    }
+
+    /**
+     * Returns the number of stocks held.
+     */
+    public int getPositionCount() {
+        return positionCount;
+    }
+
+    /**
+     * Returns the sum of the quantities of all the stocks held.
+     */
+    public long getTotalShares() {
+        return totalShares;
+    }
+
+    /**
+     * Returns the time of the last change of the contents, in
+     * milliseconds since the epoch, or 0 if the contents have not
+     * changed since they were loaded.
+     */
+    public long getLastChange() {
+        return lastChange;
+    }
+
+}
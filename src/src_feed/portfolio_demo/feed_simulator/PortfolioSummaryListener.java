@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+/**
+ * A PortfolioListener that is also interested in the aggregate figures
+ * of the portfolio (see PortfolioSummary).
+ * The figures are taken along with each change, while holding the lock
+ * of the portfolio, and supplied right before the related call to the
+ * PortfolioListener methods, so that the listener does not need to
+ * inquire the portfolio, hence to contend for its lock.
+ */
+public interface PortfolioSummaryListener extends PortfolioListener {
+
+    /**
+     * Called before each notification, with the figures as they were
+     * right after the notified change; for the initial status, they
+     * refer to the contents sent.
+     */
+    public void setSummary(int positionCount, long totalShares, long lastChange);
+
+}
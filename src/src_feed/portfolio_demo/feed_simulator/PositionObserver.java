@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+/**
+ * Used by the feed to be informed of every change applied to the
+ * portfolio contents, in a synchronous way.
+ * Unlike PortfolioListener, the calls are issued while holding the lock
+ * of the portfolio, right after each change, hence they are totally
+ * ordered for each portfolio; for this reason, the implementations
+ * should be short and must not be blocking.
+ */
+public interface PositionObserver {
+
+    /**
+     * Called after the quantity of a stock has changed;
+     * stock and portfolio are identified by their ordinals.
+     */
+    public void onChange(int portfolioN, int stockN, int qty, int oldQty);
+
+}
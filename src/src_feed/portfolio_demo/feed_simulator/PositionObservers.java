@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Arrays;
+
+/**
+ * Forwards the changes to any number of observers, which can be added
+ * and removed at any time; used by the feed to let the journal and other
+ * components observe all the portfolios.
+ * The observers are kept in a copy-on-write array, so that forwarding
+ * a change takes no lock.
+ */
+class PositionObservers implements PositionObserver {
+
+    private volatile PositionObserver[] observers = new PositionObserver[0];
+
+    synchronized void add(PositionObserver observer) {
+        PositionObserver[] updated = Arrays.copyOf(observers, observers.length + 1);
+        updated[observers.length] = observer;
+        observers = updated;
+    }
+
+    synchronized void remove(PositionObserver observer) {
+        for (int i = 0; i < observers.length; i++) {
+            if (observers[i] == observer) {
+                PositionObserver[] updated = new PositionObserver[observers.length - 1];
+                System.arraycopy(observers, 0, updated, 0, i);
+                System.arraycopy(observers, i + 1, updated, i, updated.length - i);
+                observers = updated;
+                return;
+            }
+        }
+    }
+
+    public void onChange(int portfolioN, int stockN, int qty, int oldQty) {
+        PositionObserver[] current = observers;
+        for (int i = 0; i < current.length; i++) {
+            current[i].onChange(portfolioN, stockN, qty, oldQty);
+        }
+    }
+
+}
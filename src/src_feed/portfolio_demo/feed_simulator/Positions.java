@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Arrays;
+
+/**
+ * The contents of a portfolio: the quantity of each stock held, by stock
+ * ordinal. Only the stocks actually held take room, so that a portfolio
+ * stays small even when the stock universe is large.
+ * It is an open addressing hash map with linear probing, backed by an
+ * int array where each slot holds a stock ordinal and its quantity;
+ * a 0 quantity means that the stock is not held.
+ * The array is split in pages, which are shared by the copies, so that
+ * a copy can be taken in constant time; a page is copied only when first
+ * changed through an instance which doesn't own it, hence a change after
+ * a copy costs a page, not the whole map.
+ * Not thread safe.
+ */
+public class Positions {
+
+    private static final int PAGE_BITS = 6;
+
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * The slots, in pages; each slot takes two elements: the stock ordinal
+     * plus 1, with 0 marking a free slot, and the quantity.
+     */
+    private int[][] pages;
+
+    /**
+     * One bit for each page that this instance can change in place;
+     * null if no page is owned, in which case the array of pages
+     * is shared too.
+     */
+    private long[] owned;
+
+    /**
+     * Number of slots; a power of 2.
+     */
+    private int capacity;
+
+    private int size = 0;
+
+    public Positions() {
+        this(8);
+    }
+
+    /**
+     * Creates the map with room for the specified number of positions.
+     */
+    public Positions(int expected) {
+        int capacity = 4;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private Positions(Positions other) {
+        pages = other.pages;
+        owned = null;
+        capacity = other.capacity;
+        size = other.size;
+    }
+
+    /**
+     * Returns the number of stocks held.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the quantity held for a stock, or 0.
+     */
+    public int get(int stockN) {
+        int mask = capacity - 1;
+        for (int i = hash(stockN) & mask; key(i) != 0; i = (i + 1) & mask) {
+            if (key(i) == stockN + 1) {
+                return qty(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the quantity held for a stock; a 0 quantity removes the stock.
+     * Returns the previous quantity.
+     */
+    public int set(int stockN, int qty) {
+        int mask = capacity - 1;
+        int i = hash(stockN) & mask;
+        for (; key(i) != 0; i = (i + 1) & mask) {
+            if (key(i) == stockN + 1) {
+                int old = qty(i);
+                if (qty != old) {
+                    if (qty != 0) {
+                        setSlot(i, stockN + 1, qty);
+                    } else {
+                        removeSlot(i);
+                    }
+                }
+                return old;
+            }
+        }
+        if (qty != 0) {
+            setSlot(i, stockN + 1, qty);
+            size++;
+            if (size * 2 > capacity) {
+                rehash(capacity * 2);
+            }
+        }
+        return 0;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            allocate(capacity);
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns a copy of the map, in constant time; the pages are
+     * shared and copied by either instance only when changed.
+     */
+    public Positions copy() {
+        Positions copy = new Positions(this);
+        // from now on, this instance has to copy the pages before
+        // changing them, as the copy does
+        owned = null;
+        return copy;
+    }
+
+    /**
+     * Returns the number of slots, for iterating
+     * through stockAt and qtyAt.
+     */
+    public int slots() {
+        return capacity;
+    }
+
+    /**
+     * Returns the stock ordinal in a slot, or -1 if the slot is free.
+     */
+    public int stockAt(int slot) {
+        return key(slot) - 1;
+    }
+
+    public int qtyAt(int slot) {
+        return qty(slot);
+    }
+
+    /**
+     * Stores the positions in the supplied arrays, which must have room
+     * for them, in increasing stock ordinal order; returns their number.
+     */
+    public int sorted(int[] stockNs, int[] quantities) {
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (key(i) != 0) {
+                stockNs[n++] = key(i) - 1;
+            }
+        }
+        Arrays.sort(stockNs, 0, n);
+        for (int i = 0; i < n; i++) {
+            quantities[i] = get(stockNs[i]);
+        }
+        return n;
+    }
+
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Positions)) {
+            return false;
+        }
+        Positions other = (Positions) obj;
+        if (other.size != size) {
+            return false;
+        }
+        for (int i = 0; i < capacity; i++) {
+            if (key(i) != 0 && other.get(key(i) - 1) != qty(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (key(i) != 0) {
+                h += key(i) ^ qty(i);
+            }
+        }
+        return h;
+    }
+
+    private static int hash(int stockN) {
+        // spread consecutive ordinals
+        int h = stockN * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int key(int slot) {
+        return pages[slot >>> PAGE_BITS][(slot & PAGE_MASK) << 1];
+    }
+
+    private int qty(int slot) {
+        return pages[slot >>> PAGE_BITS][((slot & PAGE_MASK) << 1) + 1];
+    }
+
+    /**
+     * Writes a slot, after copying its page, if not owned.
+     */
+    private void setSlot(int slot, int key, int qty) {
+        int page = slot >>> PAGE_BITS;
+        if (owned == null) {
+            pages = pages.clone();
+            owned = new long[(pages.length + 63) >>> 6];
+        }
+        if ((owned[page >>> 6] & (1L << page)) == 0) {
+            pages[page] = pages[page].clone();
+            owned[page >>> 6] |= 1L << page;
+        }
+        int[] data = pages[page];
+        data[(slot & PAGE_MASK) << 1] = key;
+        data[((slot & PAGE_MASK) << 1) + 1] = qty;
+    }
+
+    /**
+     * Frees a slot, by moving back the subsequent entries of the same
+     * probe sequence, so that no tombstones are needed.
+     */
+    private void removeSlot(int free) {
+        int mask = capacity - 1;
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (key(i) == 0) {
+                break;
+            }
+            int home = hash(key(i) - 1) & mask;
+            // move the entry if its home is not within (free, i]
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                setSlot(free, key(i), qty(i));
+                free = i;
+            }
+        }
+        setSlot(free, 0, 0);
+        size--;
+    }
+
+    /**
+     * Replaces the storage with new empty pages, owned by this instance.
+     */
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        int pageSize = Math.min(capacity, PAGE_SIZE);
+        pages = new int[capacity / pageSize][pageSize * 2];
+        owned = new long[(pages.length + 63) >>> 6];
+        Arrays.fill(owned, -1L);
+    }
+
+    private void rehash(int newCapacity) {
+        int[][] oldPages = pages;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        int mask = newCapacity - 1;
+        for (int j = 0; j < oldCapacity; j++) {
+            int[] oldData = oldPages[j >>> PAGE_BITS];
+            int key = oldData[(j & PAGE_MASK) << 1];
+            if (key != 0) {
+                int i = hash(key - 1) & mask;
+                while (key(i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                int[] data = pages[i >>> PAGE_BITS];
+                data[(i & PAGE_MASK) << 1] = key;
+                data[((i & PAGE_MASK) << 1) + 1] = oldData[((j & PAGE_MASK) << 1) + 1];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only view of a copy of the contents of a portfolio as a map from
+ * stock ids to positive quantities, as expected by the listeners; the
+ * entries are produced while iterating, in a single pass over the slots,
+ * and no map is built. The copy must not be changed afterwards.
+ */
+class PositionsMap extends AbstractMap<String, Integer> {
+
+    private final Positions positions;
+
+    private final SymbolTable stocks;
+
+    private int size = -1;
+
+    PositionsMap(Positions positions, SymbolTable stocks) {
+        this.positions = positions;
+        this.stocks = stocks;
+    }
+
+    public int size() {
+        if (size < 0) {
+            int count = 0;
+            for (int slot = 0; slot < positions.slots(); slot++) {
+                if (positions.stockAt(slot) >= 0 && positions.qtyAt(slot) > 0) {
+                    count++;
+                }
+            }
+            size = count;
+        }
+        return size;
+    }
+
+    public Integer get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int stockN = stocks.ordinal((String) key);
+        if (stockN < 0) {
+            return null;
+        }
+        int qty = positions.get(stockN);
+        return qty > 0 ? qty : null;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public Set<Map.Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Integer>>() {
+            public int size() {
+                return PositionsMap.this.size();
+            }
+            public Iterator<Map.Entry<String, Integer>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Integer>> {
+
+        private int next = advance(0);
+
+        private int advance(int slot) {
+            while (slot < positions.slots()
+                    && (positions.stockAt(slot) < 0 || positions.qtyAt(slot) <= 0)) {
+                slot++;
+            }
+            return slot;
+        }
+
+        public boolean hasNext() {
+            return next < positions.slots();
+        }
+
+        public Map.Entry<String, Integer> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int slot = next;
+            next = advance(slot + 1);
+            return new AbstractMap.SimpleImmutableEntry<String, Integer>(
+                stocks.id(positions.stockAt(slot)), positions.qtyAt(slot));
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Map;
+
+/**
+ * Supplies the prices of the stocks to the ValuationEngine.
+ * Prices are expressed in cents; stocks are identified by their
+ * ordinals in the stock symbol table.
+ * An implementation can be plugged in through the "price_source"
+ * parameter of the feed, as a class name; it needs a public
+ * constructor with no arguments.
+ */
+public interface PriceSource {
+
+    /**
+     * Receives the prices.
+     */
+    public interface Listener {
+
+        /**
+         * Called upon each new price; the calls for the same stock
+         * must not overlap.
+         */
+        public void onPrice(int stockN, long price);
+    }
+
+    /**
+     * Configures the source, through the parameters of the feed.
+     * @throws IllegalArgumentException in case of wrong configuration.
+     */
+    public void init(Map params, SymbolTable stocks);
+
+    /**
+     * Starts sending the prices; the current price of every stock
+     * should be sent as soon as possible.
+     */
+    public void start(Listener listener);
+
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finds the portfolios with the longest notification queues.
+ * On the enqueue path, a portfolio is only noted as a candidate when its
+ * queue grows to MIN_DEPTH notifications, hence all the other updates
+ * cost a comparison; the candidates are then inquired and ranked upon
+ * each metrics tick, on the metrics thread, and the ones whose queues
+ * have shrunk are dropped. So the ranking is as of the last tick and
+ * only includes the queues of at least MIN_DEPTH notifications.
+ */
+class QueueRanking {
+
+    /**
+     * The depth from which a queue can enter the ranking.
+     */
+    static final int MIN_DEPTH = 32;
+
+    private static final int FREE = -1;
+
+    /**
+     * The candidate portfolio ordinals, or FREE; filled on the enqueue
+     * path and emptied by rank, through compare-and-set; a portfolio
+     * may be found more than once.
+     */
+    private final AtomicIntegerArray candidates;
+
+    /**
+     * The ranked portfolio ordinals and depths, in decreasing order of
+     * depth, as found by the last rank; replaced as a whole.
+     */
+    private volatile int[][] ranking = new int[][] { new int[0], new int[0] };
+
+    private final int size;
+
+    QueueRanking(int size, int candidateCount) {
+        this.size = size;
+        candidates = new AtomicIntegerArray(candidateCount);
+        for (int i = 0; i < candidateCount; i++) {
+            candidates.set(i, FREE);
+        }
+    }
+
+    /**
+     * Records that the queue of a portfolio has grown from oldDepth to
+     * depth; to be called while holding the lock of the portfolio.
+     * If all the candidate slots are taken, the portfolio is missed
+     * until its queue grows to MIN_DEPTH again.
+     */
+    void update(int portfolioN, int oldDepth, int depth) {
+        if (depth < MIN_DEPTH || oldDepth >= MIN_DEPTH) {
+            return;
+        }
+        for (int i = 0; i < candidates.length(); i++) {
+            if (candidates.get(i) == FREE && candidates.compareAndSet(i, FREE, portfolioN)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Inquires the current depths of the candidates and ranks them,
+     * dropping the ones no longer deep enough or in memory;
+     * to be called by a single thread at a time.
+     */
+    void rank(PortfolioFeedSimulator feed) {
+        int[] rankedNs = new int[size];
+        int[] rankedDepths = new int[size];
+        int found = 0;
+        for (int i = 0; i < candidates.length(); i++) {
+            int portfolioN = candidates.get(i);
+            if (portfolioN == FREE) {
+                continue;
+            }
+            Portfolio portfolio = feed.getLoadedPortfolio(portfolioN);
+            int depth = portfolio != null ? portfolio.getQueueDepth() : 0;
+            if (depth < MIN_DEPTH || isCandidateBefore(portfolioN, i)) {
+                // if the queue grows again in the meantime, the portfolio
+                // takes another slot, hence it is not lost
+                candidates.compareAndSet(i, portfolioN, FREE);
+                continue;
+            }
+            if (found == size && depth <= rankedDepths[size - 1]) {
+                continue;
+            }
+            int j = (found < size) ? found++ : size - 1;
+            while (j > 0 && rankedDepths[j - 1] < depth) {
+                rankedNs[j] = rankedNs[j - 1];
+                rankedDepths[j] = rankedDepths[j - 1];
+                j--;
+            }
+            rankedNs[j] = portfolioN;
+            rankedDepths[j] = depth;
+        }
+        if (found < size) {
+            rankedNs = Arrays.copyOf(rankedNs, found);
+            rankedDepths = Arrays.copyOf(rankedDepths, found);
+        }
+        ranking = new int[][] { rankedNs, rankedDepths };
+    }
+
+    private boolean isCandidateBefore(int portfolioN, int slot) {
+        for (int i = 0; i < slot; i++) {
+            if (candidates.get(i) == portfolioN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills the arrays provided, which should be as long as the ranking,
+     * with the ranked portfolio ordinals and depths, in decreasing order
+     * of depth, as found by the last rank; returns their number.
+     */
+    int get(int[] rankedNs, int[] rankedDepths) {
+        int[][] current = ranking;
+        int found = current[0].length;
+        System.arraycopy(current[0], 0, rankedNs, 0, found);
+        System.arraycopy(current[1], 0, rankedDepths, 0, found);
+        return found;
+    }
+
+}
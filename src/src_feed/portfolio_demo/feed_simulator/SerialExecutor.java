@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the submitted tasks one at a time and in FIFO order, by borrowing
+ * the threads of a shared executor. Any number of instances can share the
+ * same underlying pool, hence the number of threads does not depend on the
+ * number of instances; an instance that has nothing to do holds no thread.
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * The shared pool that actually runs the tasks.
+     */
+    private final Executor pool;
+
+    /**
+     * Creator supplied logger, for the errors thrown by the tasks.
+     */
+    private final Logger logger;
+
+    /**
+     * Tasks submitted and not yet run.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Number of tasks submitted and not yet completed; the submitter
+     * that moves it from 0 to 1 is in charge of scheduling the drainer.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Runs the enqueued tasks on a pool thread; it only processes
+     * the tasks found at start, then it yields the thread, to prevent
+     * a busy instance from monopolizing the pool.
+     * Even if a task throws an Error, the tasks run are accounted for
+     * and the remaining ones are rescheduled, so that the instance
+     * is not stuck.
+     */
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            int done = 0;
+            int toDo = pending.get();
+            try {
+                while (done < toDo) {
+                    Runnable task = tasks.poll();
+                    done++;
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // the task is not supposed to throw;
+                        // we go on with the next ones anyway
+                        logger.error("Unexpected error from an enqueued task", e);
+                    }
+                }
+            } finally {
+                if (pending.addAndGet(-done) > 0) {
+                    // more tasks arrived in the meantime; reschedule
+                    pool.execute(this);
+                }
+            }
+        }
+    };
+
+    public SerialExecutor(Executor pool, Logger logger) {
+        this.pool = pool;
+        this.logger = logger;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (pending.getAndIncrement() == 0) {
+            pool.execute(drainer);
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates random prices, for testing: each stock starts at a price
+ * between 10 and 100 and then, upon each tick, a random stock moves by
+ * up to 1%. The prices depend only on the "random_seed" parameter, if set.
+ * The tick rate is configured through "price_ticks_per_second"
+ * (default 100).
+ */
+public class SimulatedPriceSource implements PriceSource {
+
+    private long[] prices;
+
+    private Random random;
+
+    private long tickNanos;
+
+    public void init(Map params, SymbolTable stocks) {
+        long ticks = PortfolioFeedSimulator.getLongParam(params, "price_ticks_per_second", 100);
+        if (ticks <= 0 || ticks > 1000000) {
+            throw new IllegalArgumentException("Wrong price_ticks_per_second: " + ticks);
+        }
+        this.tickNanos = 1000000000L / ticks;
+        String seedParam = (String) params.get("random_seed");
+        this.random = (seedParam != null) ? new Random(PortfolioFeedSimulator.getLongParam(params, "random_seed", 0)) : new Random();
+        this.prices = new long[stocks.size()];
+        for (int stockN = 0; stockN < prices.length; stockN++) {
+            prices[stockN] = 1000 + random.nextInt(9001);
+        }
+    }
+
+    public void start(final Listener listener) {
+        for (int stockN = 0; stockN < prices.length; stockN++) {
+            listener.onPrice(stockN, prices[stockN]);
+        }
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(
+            new Dispatcher.DaemonThreadFactory("Simulated prices"));
+        ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                int stockN = random.nextInt(prices.length);
+                long price = prices[stockN];
+                long move = price / 100 + 1;
+                price += (long) (random.nextDouble() * (2 * move + 1)) - move;
+                if (price < 1) {
+                    price = 1;
+                }
+                prices[stockN] = price;
+                listener.onPrice(stockN, price);
+            }
+        }, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+/**
+ * Maps the ids of a family of symbols to int ordinals between 0 and the
+ * number of symbols minus 1, and back.
+ * The symbols can be either composed as a fixed prefix followed by a
+ * number between 1 and a maximum (like "item1" to "item30"), or listed
+ * explicitly (like the instruments loaded from a file).
+ * Ids are resolved in a single pass, without creating any object.
+ * For prefixed symbols, as Integer.parseInt is used to do, leading zeros
+ * and a leading '+' are tolerated, but ordinals are always turned back to
+ * the canonical ids; the ids are kept in memory only for small families,
+ * otherwise they are composed upon request.
+ * Listed symbols are resolved through an open addressing hash table.
+ */
+public class SymbolTable {
+
+    /**
+     * Maximum number of prefixed ids kept in memory.
+     */
+    private static final int MAX_CACHED_IDS = 1 << 16;
+
+    /**
+     * The prefix, for prefixed symbols; null for listed symbols.
+     */
+    private final String prefix;
+
+    private final int size;
+
+    /**
+     * Canonical interned ids, indexed by ordinal;
+     * null for large families of prefixed symbols.
+     */
+    private final String[] ids;
+
+    /**
+     * For listed symbols, the hash table of the ordinals plus 1;
+     * 0 marks a free slot.
+     */
+    private final int[] index;
+
+    public SymbolTable(String prefix, int size) {
+        this.prefix = prefix;
+        this.size = size;
+        this.index = null;
+        if (size <= MAX_CACHED_IDS) {
+            this.ids = new String[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (prefix + (i + 1)).intern();
+            }
+        } else {
+            this.ids = null;
+        }
+    }
+
+    /**
+     * Creates a table of listed symbols; the ordinals follow
+     * the order of the ids supplied.
+     * @throws IllegalArgumentException in case of duplicated ids.
+     */
+    public SymbolTable(String[] listedIds) {
+        this.prefix = null;
+        this.size = listedIds.length;
+        this.ids = new String[size];
+        int capacity = 4;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        this.index = new int[capacity];
+        for (int n = 0; n < size; n++) {
+            String id = listedIds[n];
+            if (ordinal(id) >= 0) {
+                throw new IllegalArgumentException("Duplicated id: " + id);
+            }
+            ids[n] = id.intern();
+            int i = hash(id, 0, id.length()) & (capacity - 1);
+            while (index[i] != 0) {
+                i = (i + 1) & (capacity - 1);
+            }
+            index[i] = n + 1;
+        }
+    }
+
+    /**
+     * Returns the number of symbols.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the ordinal of the symbol with the specified id,
+     * or -1 if the id is not valid.
+     */
+    public int ordinal(String id) {
+        return ordinal(id, 0, id.length());
+    }
+
+    /**
+     * Returns the ordinal of the symbol whose id is found in the specified
+     * portion of a string, or -1 if the id is not valid.
+     */
+    public int ordinal(String str, int start, int end) {
+        if (prefix == null) {
+            return listedOrdinal(str, start, end);
+        }
+        int plen = prefix.length();
+        if (end - start <= plen || !str.startsWith(prefix, start)) {
+            return -1;
+        }
+        int i = start + plen;
+        if (str.charAt(i) == '+') {
+            i++;
+            if (i == end) {
+                return -1;
+            }
+        }
+        // a long cannot overflow, as num never exceeds size before a digit
+        long num = 0;
+        for (; i < end; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            num = num * 10 + (c - '0');
+            if (num > size) {
+                return -1;
+            }
+        }
+        if (num <= 0) {
+            return -1;
+        }
+        return (int) num - 1;
+    }
+
+    /**
+     * Returns the canonical id of the symbol with the specified ordinal.
+     */
+    public String id(int ordinal) {
+        if (ids == null) {
+            return prefix + (ordinal + 1);
+        }
+        return ids[ordinal];
+    }
+
+    private int listedOrdinal(String str, int start, int end) {
+        int len = end - start;
+        int mask = index.length - 1;
+        for (int i = hash(str, start, end) & mask; index[i] != 0; i = (i + 1) & mask) {
+            String id = ids[index[i] - 1];
+            if (id.length() == len && id.regionMatches(0, str, start, len)) {
+                return index[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Same as String.hashCode, on a portion of a string,
+     * with some further spreading.
+     */
+    private static int hash(String str, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + str.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+}
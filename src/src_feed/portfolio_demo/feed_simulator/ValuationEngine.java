@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.feed_simulator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Values the portfolios of a feed at the last prices supplied by a
+ * PriceSource, incrementally: a change of quantity only affects the
+ * value of its portfolio, while a price change only affects the
+ * portfolios holding the stock, which are found through the
+ * HoldersIndex of the feed.
+ * The engine is informed of all the changes by the index, under the lock
+ * of the stripe of the stock holders involved (see HoldersIndex); each
+ * stripe has its own price, which, upon a price change, is updated under
+ * the lock of the stripe, together with the values of the holders in the
+ * stripe, so that each change is valued at a well defined price. The
+ * stripes are visited one at a time, hence, during a price change, the
+ * holders of the stock in different stripes may be valued at different
+ * prices for a short while. Upon a price change, the listeners of the
+ * affected portfolios are notified through an update with unchanged
+ * quantity (see Portfolio.revalue).
+ * Prices and values are expressed in cents.
+ */
+public class ValuationEngine implements PositionObserver, PriceSource.Listener {
+
+    private final PortfolioFeedSimulator feed;
+
+    /**
+     * The last price of each stock, by stock ordinal; 0 if not known yet.
+     * Changed once all the stripes have been updated.
+     */
+    private final AtomicLongArray prices;
+
+    /**
+     * The price applied to each stripe of the holders of each stock, at
+     * position stockN * HoldersIndex.STRIPES + stripe; changed while
+     * holding the lock of the stripe.
+     */
+    private final AtomicLongArray stripePrices;
+
+    private final HoldersIndex holders;
+
+    /**
+     * The value of each portfolio, by portfolio ordinal.
+     */
+    private final AtomicLongArray values;
+
+    /**
+     * Creates the engine with no prices, hence all the holdings
+     * already in the index are worth 0.
+     */
+    ValuationEngine(PortfolioFeedSimulator feed, HoldersIndex holders, int stockCount, int portfolioCount) {
+        this.feed = feed;
+        this.holders = holders;
+        this.prices = new AtomicLongArray(stockCount);
+        this.stripePrices = new AtomicLongArray(stockCount * HoldersIndex.STRIPES);
+        this.values = new AtomicLongArray(portfolioCount);
+    }
+
+    /**
+     * Called by the index, while holding the lock of the stripe.
+     */
+    public void onChange(int portfolioN, int stockN, int qty, int oldQty) {
+        int stripe = stockN * HoldersIndex.STRIPES + HoldersIndex.stripeOf(portfolioN);
+        values.addAndGet(portfolioN, (qty - (long) oldQty) * stripePrices.get(stripe));
+    }
+
+    public void onPrice(int stockN, long price) {
+        if (price == prices.get(stockN)) {
+            return;
+        }
+        int[] affected = new int[0];
+        int count = 0;
+        for (int stripe = 0; stripe < HoldersIndex.STRIPES; stripe++) {
+            Positions stripeHolders = holders.getStripe(stockN, stripe);
+            int index = stockN * HoldersIndex.STRIPES + stripe;
+            synchronized (stripeHolders) {
+                long delta = price - stripePrices.get(index);
+                stripePrices.set(index, price);
+                if (delta == 0) {
+                    continue;
+                }
+                if (count + stripeHolders.size() > affected.length) {
+                    affected = Arrays.copyOf(affected, count + stripeHolders.size());
+                }
+                for (int slot = 0; slot < stripeHolders.slots(); slot++) {
+                    int portfolioN = stripeHolders.stockAt(slot);
+                    if (portfolioN >= 0) {
+                        values.addAndGet(portfolioN, delta * stripeHolders.qtyAt(slot));
+                        affected[count++] = portfolioN;
+                    }
+                }
+            }
+        }
+        prices.set(stockN, price);
+        // the portfolios are notified without holding the lock, as the
+        // lock of a portfolio has to be taken before the lock of a stripe
+        for (int i = 0; i < count; i++) {
+            Portfolio portfolio = feed.getLoadedPortfolio(affected[i]);
+            if (portfolio != null) {
+                portfolio.revalue(stockN);
+            }
+        }
+    }
+
+    /**
+     * Returns the last price of a stock, or 0 if not known yet.
+     */
+    public long getPrice(int stockN) {
+        return prices.get(stockN);
+    }
+
+    /**
+     * Returns the current value of a portfolio, made consistent with
+     * the latest changes and prices.
+     */
+    public long getValue(int portfolioN) {
+        return values.get(portfolioN);
+    }
+
+    /**
+     * Returns the number of portfolios holding a stock.
+     */
+    public int getHolderCount(int stockN) {
+        return holders.getHolderCount(stockN);
+    }
+
+    /**
+     * Formats an amount in cents as a decimal number.
+     */
+    public static String format(long cents) {
+        StringBuilder str = new StringBuilder(20);
+        if (cents < 0) {
+            str.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        str.append(cents / 100).append('.');
+        if (fraction < 10) {
+            str.append('0');
+        }
+        return str.append(fraction).toString();
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.adapters;
+
+import java.util.Arrays;
+
+import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioCluster;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+/**
+ * A reusable collector of the orders carried by a batch order message.
+ * The orders are stored by portfolio and stock ordinal, with quantities
+ * positive for buy orders and negative for sell orders; then they are
+ * applied by grouping them by portfolio, so that the orders for each
+ * portfolio are applied together (see Portfolio.applyOrders). The groups
+ * are found by sorting the orders once, and all the buffers are reused,
+ * hence, once large enough, a batch allocates nothing.
+ * Orders rejected before being applied carry an error message.
+ * The orders for portfolios owned by other nodes of a cluster can be
+ * forwarded first; then they are skipped when applying the others.
+ */
+public class OrderBatch {
+
+    private int count = 0;
+
+    private int[] portfolioNs = new int[16];
+
+    private int[] stockNs = new int[16];
+
+    private int[] qtys = new int[16];
+
+    private int[] outcomes = new int[16];
+
+    private String[] errors = new String[16];
+
+    private boolean[] forwarded = new boolean[16];
+
+    // scratch buffer for the valid orders to be grouped, each one as its
+    // portfolio ordinal and position, packed in a long, so that, once
+    // sorted, the orders of each portfolio are contiguous and keep
+    // their original order
+    private long[] sortKeys = new long[16];
+
+    // scratch buffers for the orders of a single portfolio
+    private int[] groupIndexes = new int[16];
+
+    private int[] groupStockNs = new int[16];
+
+    private int[] groupQtys = new int[16];
+
+    private int[] groupOutcomes = new int[16];
+
+    public void clear() {
+        Arrays.fill(errors, 0, count, null);
+        Arrays.fill(forwarded, 0, count, false);
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Adds a valid order.
+     */
+    public void add(int portfolioN, int stockN, int qty) {
+        ensureCapacity();
+        portfolioNs[count] = portfolioN;
+        stockNs[count] = stockN;
+        qtys[count] = qty;
+        outcomes[count] = Portfolio.CHANGED;
+        errors[count] = null;
+        count++;
+    }
+
+    /**
+     * Adds an order that has been rejected.
+     */
+    public void addRejected(String error) {
+        ensureCapacity();
+        portfolioNs[count] = -1;
+        errors[count] = error;
+        count++;
+    }
+
+    /**
+     * Forwards the valid orders for the portfolios not owned to their
+     * owners; the orders for each portfolio are sent together.
+     */
+    public void forward(PortfolioCluster cluster) {
+        if (cluster.getNodeCount() == 1) {
+            return;
+        }
+        int sorted = 0;
+        for (int i = 0; i < count; i++) {
+            if (errors[i] == null && !forwarded[i] && !cluster.isOwned(portfolioNs[i])) {
+                sortKeys[sorted++] = sortKey(i);
+            }
+        }
+        Arrays.sort(sortKeys, 0, sorted);
+        int start = 0;
+        while (start < sorted) {
+            int groupSize = collectGroup(start, sorted);
+            for (int k = 0; k < groupSize; k++) {
+                forwarded[groupIndexes[k]] = true;
+            }
+            cluster.forwardOrders(portfolioNs[groupIndexes[0]], groupSize, groupStockNs, groupQtys);
+            start += groupSize;
+        }
+    }
+
+    /**
+     * Applies the valid orders not forwarded;
+     * each portfolio involved is locked once.
+     */
+    public void apply(PortfolioFeedSimulator feed) {
+        int sorted = 0;
+        for (int i = 0; i < count; i++) {
+            if (errors[i] == null && !forwarded[i]) {
+                sortKeys[sorted++] = sortKey(i);
+            }
+        }
+        Arrays.sort(sortKeys, 0, sorted);
+        int start = 0;
+        while (start < sorted) {
+            int groupSize = collectGroup(start, sorted);
+
+            Portfolio portfolio = feed.getPortfolio(portfolioNs[groupIndexes[0]]);
+            portfolio.applyOrders(groupSize, groupStockNs, groupQtys, groupOutcomes);
+
+            for (int k = 0; k < groupSize; k++) {
+                outcomes[groupIndexes[k]] = groupOutcomes[k];
+            }
+            start += groupSize;
+        }
+    }
+
+    private long sortKey(int i) {
+        return ((long) portfolioNs[i] << 32) | i;
+    }
+
+    /**
+     * Collects in the scratch buffers the orders of the group that starts
+     * at the specified position of the sorted keys; returns their number.
+     */
+    private int collectGroup(int start, int end) {
+        int portfolioN = (int) (sortKeys[start] >>> 32);
+        int groupSize = 0;
+        for (int j = start; j < end && (int) (sortKeys[j] >>> 32) == portfolioN; j++) {
+            int i = (int) sortKeys[j];
+            groupIndexes[groupSize] = i;
+            groupStockNs[groupSize] = stockNs[i];
+            groupQtys[groupSize] = qtys[i];
+            groupSize++;
+        }
+        return groupSize;
+    }
+
+    /**
+     * Submits the valid orders not forwarded to an asynchronous pipeline,
+     * rather than applying them; the pipeline accepts or refuses them as
+     * a whole, and, if refused, they are all marked as failed.
+     */
+    public void submit(OrderPipeline pipeline) throws InterruptedException {
+        int selected = 0;
+        for (int i = 0; i < count; i++) {
+            if (errors[i] == null && !forwarded[i]) {
+                groupIndexes[selected++] = i;
+            }
+        }
+        if (selected > 0 && !pipeline.submit(selected, groupIndexes, portfolioNs, stockNs, qtys)) {
+            for (int k = 0; k < selected; k++) {
+                errors[groupIndexes[k]] = "Order queue full";
+            }
+        }
+    }
+
+    /**
+     * Returns a description of the orders that were not applied,
+     * or null if all the orders were applied; orders are numbered from 1.
+     */
+    public String getFailures() {
+        StringBuilder failures = null;
+        for (int i = 0; i < count; i++) {
+            String error = errors[i];
+            if (error == null) {
+                switch (outcomes[i]) {
+                case Portfolio.NO_STOCK_TO_SELL:
+                    error = "No stock to sell";
+                    break;
+                case Portfolio.OVERFLOW:
+                    error = "Quantity overflow";
+                    break;
+                case Portfolio.INVALID_ORDER:
+                    error = "Invalid order";
+                    break;
+                }
+            }
+            if (error != null) {
+                if (failures == null) {
+                    failures = new StringBuilder();
+                } else {
+                    failures.append(';');
+                }
+                failures.append(i + 1).append(':').append(error);
+            }
+        }
+        return failures == null ? null : failures.toString();
+    }
+
+    private void ensureCapacity() {
+        if (count == portfolioNs.length) {
+            int newLength = count * 2;
+            portfolioNs = Arrays.copyOf(portfolioNs, newLength);
+            stockNs = Arrays.copyOf(stockNs, newLength);
+            qtys = Arrays.copyOf(qtys, newLength);
+            outcomes = Arrays.copyOf(outcomes, newLength);
+            errors = Arrays.copyOf(errors, newLength);
+            forwarded = Arrays.copyOf(forwarded, newLength);
+            sortKeys = Arrays.copyOf(sortKeys, newLength);
+            groupIndexes = Arrays.copyOf(groupIndexes, newLength);
+            groupStockNs = Arrays.copyOf(groupStockNs, newLength);
+            groupQtys = Arrays.copyOf(groupQtys, newLength);
+            groupOutcomes = Arrays.copyOf(groupOutcomes, newLength);
+        }
+    }
+
+}
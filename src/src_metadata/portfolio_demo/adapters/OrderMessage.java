@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.adapters;
+
+/**
+ * A reusable descriptor of an order entry message, in the
+ * "OP|portfolio|stock|qty" form sent by the Portfolio Demo client.
+ * The message is parsed in a single pass, by recording the boundaries
+ * of the fields, without creating any object; the fields are then meant
+ * to be resolved in place (see SymbolTable.ordinal(String, int, int)).
+ * As String.split would do, trailing empty fields are ignored.
+ */
+public class OrderMessage {
+
+    /**
+     * Parse outcomes.
+     */
+    public static final int OK = 0;
+    public static final int WRONG_FORMAT = 1;
+    public static final int WRONG_QTY = 2;
+
+    /**
+     * Operations.
+     */
+    public static final int OTHER = 0;
+    public static final int BUY = 1;
+    public static final int SELL = 2;
+
+    private static final int FIELDS = 4;
+
+    /**
+     * Field indexes.
+     */
+    public static final int OP_FIELD = 0;
+    public static final int PORTFOLIO_FIELD = 1;
+    public static final int STOCK_FIELD = 2;
+    public static final int QTY_FIELD = 3;
+
+    private String message;
+
+    private int op;
+
+    private final int[] starts = new int[FIELDS];
+
+    private final int[] ends = new int[FIELDS];
+
+    private int qty;
+
+    /**
+     * Parses the specified message; returns OK or a parse error;
+     * in case of WRONG_QTY the other fields are available anyway.
+     */
+    public int parse(String message) {
+        return parse(message, 0, message.length());
+    }
+
+    /**
+     * Parses the order found in the specified portion of a message;
+     * the field positions are relative to the whole message.
+     */
+    public int parse(String message, int from, int to) {
+        this.message = message;
+
+        // ignore trailing separators, like String.split does
+        int end = to;
+        while (end > from && message.charAt(end - 1) == '|') {
+            end--;
+        }
+
+        int field = 0;
+        int start = from;
+        for (int i = from; i <= end; i++) {
+            if (i == end || message.charAt(i) == '|') {
+                if (field == FIELDS) {
+                    return WRONG_FORMAT;
+                }
+                starts[field] = start;
+                ends[field] = i;
+                field++;
+                start = i + 1;
+            }
+        }
+        if (field != FIELDS) {
+            return WRONG_FORMAT;
+        }
+
+        op = parseOp(message, starts[OP_FIELD], ends[OP_FIELD]);
+
+        if (!parseQty(message, starts[QTY_FIELD], ends[QTY_FIELD])) {
+            return WRONG_QTY;
+        }
+        return OK;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getOp() {
+        return op;
+    }
+
+    public int getQty() {
+        return qty;
+    }
+
+    /**
+     * Returns the start position of the specified field in the message.
+     */
+    public int getStart(int field) {
+        return starts[field];
+    }
+
+    /**
+     * Returns the end position of the specified field in the message.
+     */
+    public int getEnd(int field) {
+        return ends[field];
+    }
+
+    /**
+     * Returns the specified field as a string; to be used for logging.
+     */
+    public String getField(int field) {
+        return message.substring(starts[field], ends[field]);
+    }
+
+    private static int parseOp(String str, int start, int end) {
+        int len = end - start;
+        if (len == 3 && str.startsWith("BUY", start)) {
+            return BUY;
+        } else if (len == 4 && str.startsWith("SELL", start)) {
+            return SELL;
+        } else {
+            return OTHER;
+        }
+    }
+
+    /**
+     * Parses the quantity with the same rules as Integer.parseInt.
+     */
+    private boolean parseQty(String str, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        boolean negative = false;
+        int i = start;
+        char first = str.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            i++;
+            if (i == end) {
+                return false;
+            }
+        }
+        // accumulate negatively, to cover Integer.MIN_VALUE
+        long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        long result = 0;
+        for (; i < end; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            result = result * 10 - (c - '0');
+            if (result < limit) {
+                return false;
+            }
+        }
+        qty = (int) (negative ? result : -result);
+        return true;
+    }
+
+}
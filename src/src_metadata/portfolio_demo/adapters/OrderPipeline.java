@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.adapters;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import portfolio_demo.feed_simulator.FeedMetrics;
+import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
+
+/**
+ * Applies the orders asynchronously with respect to the threads that
+ * submit them. The orders are sharded by portfolio on a fixed number of
+ * bounded queues, each one served by a single applier thread; hence the
+ * orders for the same portfolio are applied in FIFO order, while a busy
+ * portfolio cannot hold the submitting threads.
+ * Each applier takes all the orders available in its queue and applies
+ * them grouped by portfolio (see OrderBatch).
+ * When a queue is full, the submission is either refused immediately
+ * or after waiting for up to a configured time. The orders of a batch
+ * are accepted or refused as a whole: room is reserved on all the queues
+ * involved before any order is enqueued, so that a batch is never
+ * partially accepted.
+ */
+public class OrderPipeline {
+
+    private final Logger logger;
+
+    private final PortfolioFeedSimulator feed;
+
+    private final Shard[] shards;
+
+    /**
+     * Maximum time to wait for room in a full queue;
+     * 0 means that submissions to a full queue are refused immediately.
+     */
+    private final long blockMillis;
+
+    /**
+     * Receives the queue depth, the refusals and the time elapsed
+     * between submission and application.
+     */
+    private final FeedMetrics metrics;
+
+    public OrderPipeline(PortfolioFeedSimulator feed, int shardCount, int capacity,
+            long blockMillis, Logger logger) {
+        this.feed = feed;
+        this.blockMillis = blockMillis;
+        this.logger = logger;
+        this.metrics = feed.getMetrics();
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(capacity);
+            Thread applier = new Thread(shards[i], "Order applier " + (i + 1));
+            applier.setDaemon(true);
+            applier.start();
+        }
+        logger.info("Order pipeline started with " + shardCount + " queues of " + capacity + " orders");
+    }
+
+    /**
+     * Enqueues an order, expressed as in OrderBatch.add;
+     * returns false if the order was refused because the queue was full.
+     */
+    public boolean submit(int portfolioN, int stockN, int qty) throws InterruptedException {
+        Shard shard = shards[portfolioN % shards.length];
+        boolean accepted;
+        if (blockMillis > 0) {
+            accepted = shard.room.tryAcquire(blockMillis, TimeUnit.MILLISECONDS);
+        } else {
+            accepted = shard.room.tryAcquire();
+        }
+        if (accepted) {
+            shard.queue.add(new PendingOrder(portfolioN, stockN, qty, System.nanoTime()));
+            metrics.recordOrderQueued();
+        } else {
+            metrics.recordOrderRefused();
+        }
+        return accepted;
+    }
+
+    /**
+     * Enqueues the orders found at the specified positions of the arrays,
+     * expressed as in OrderBatch.add, either all or none; returns false if
+     * the orders were refused because any of the queues involved had no
+     * room for its share of them.
+     */
+    public boolean submit(int count, int[] indexes, int[] portfolioNs, int[] stockNs, int[] qtys)
+            throws InterruptedException {
+        int[] needed = new int[shards.length];
+        for (int k = 0; k < count; k++) {
+            needed[portfolioNs[indexes[k]] % shards.length]++;
+        }
+        // the room is reserved in a fixed order, with a single deadline
+        // for the whole batch
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        int reserved = 0;
+        boolean accepted = true;
+        while (reserved < shards.length) {
+            int permits = needed[reserved];
+            if (permits > 0) {
+                Semaphore room = shards[reserved].room;
+                long wait = deadline - System.nanoTime();
+                if (permits > shards[reserved].capacity) {
+                    accepted = false;
+                } else if (blockMillis > 0 && wait > 0) {
+                    accepted = room.tryAcquire(permits, wait, TimeUnit.NANOSECONDS);
+                } else {
+                    accepted = room.tryAcquire(permits);
+                }
+                if (!accepted) {
+                    break;
+                }
+            }
+            reserved++;
+        }
+        if (!accepted) {
+            for (int s = 0; s < reserved; s++) {
+                if (needed[s] > 0) {
+                    shards[s].room.release(needed[s]);
+                }
+            }
+            for (int k = 0; k < count; k++) {
+                metrics.recordOrderRefused();
+            }
+            return false;
+        }
+        long now = System.nanoTime();
+        for (int k = 0; k < count; k++) {
+            int i = indexes[k];
+            shards[portfolioNs[i] % shards.length].queue.add(new PendingOrder(portfolioNs[i], stockNs[i], qtys[i], now));
+            metrics.recordOrderQueued();
+        }
+        return true;
+    }
+
+    private static class PendingOrder {
+
+        final int portfolioN;
+        final int stockN;
+        final int qty;
+        final long submitNanos;
+
+        PendingOrder(int portfolioN, int stockN, int qty, long submitNanos) {
+            this.portfolioN = portfolioN;
+            this.stockN = stockN;
+            this.qty = qty;
+            this.submitNanos = submitNanos;
+        }
+    }
+
+    /**
+     * A queue, together with the task of its applier thread.
+     */
+    private class Shard implements Runnable {
+
+        final ArrayBlockingQueue<PendingOrder> queue;
+
+        /**
+         * The free room in the queue; a permit is taken before adding
+         * an order and given back once the order is taken, hence adding
+         * to the queue never fails.
+         */
+        final Semaphore room;
+
+        final int capacity;
+
+        Shard(int capacity) {
+            this.queue = new ArrayBlockingQueue<PendingOrder>(capacity);
+            this.room = new Semaphore(capacity);
+            this.capacity = capacity;
+        }
+
+        public void run() {
+            ArrayList<PendingOrder> orders = new ArrayList<PendingOrder>(capacity);
+            OrderBatch batch = new OrderBatch();
+            while (true) {
+                try {
+                    orders.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(orders);
+                room.release(orders.size());
+
+                batch.clear();
+                for (int i = 0; i < orders.size(); i++) {
+                    PendingOrder order = orders.get(i);
+                    batch.add(order.portfolioN, order.stockN, order.qty);
+                }
+                try {
+                    batch.apply(feed);
+                } catch (RuntimeException e) {
+                    logger.error("Unexpected error while applying orders", e);
+                }
+
+                long now = System.nanoTime();
+                for (int i = 0; i < orders.size(); i++) {
+                    metrics.recordOrderDequeued(now - orders.get(i).submitNanos);
+                }
+                orders.clear();
+
+                String failures = batch.getFailures();
+                if (failures != null) {
+                    // orders are numbered by their position in the block taken
+                    logger.warn("Queued orders not applied: " + failures);
+                }
+            }
+        }
+    }
+
+}
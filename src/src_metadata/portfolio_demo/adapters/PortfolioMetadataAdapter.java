@@ -25,6 +25,7 @@ import org.apache.log4j.xml.DOMConfigurator;
 
 import portfolio_demo.adapters.PortfolioDataAdapter;
 import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioCluster;
 import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
 
 import com.lightstreamer.adapters.metadata.LiteralBasedProvider;
@@ -42,6 +43,15 @@ import com.lightstreamer.interfaces.metadata.NotificationException;
  * in order to handle "sendMessage" requests from the Portfolio Demo
  * client. This allows the Portfolio Demo client to use "sendMessage"
  * in order to submit buy/sell orders to the Portfolio Feed Simulator.
+ * Besides single orders, in the "OP|portfolio|stock|qty" form, batches
+ * of orders, separated by ';', are accepted in a single message.
+ * Optionally, the orders can be applied asynchronously (see OrderPipeline);
+ * in that case, a message succeeds as soon as its orders are validated
+ * and enqueued, and orders which turn out to have no effect (like selling
+ * a stock not in the portfolio) are only logged.
+ * If the feed is a node of a cluster (see PortfolioCluster), the orders
+ * for the portfolios owned by other nodes are forwarded to their owners;
+ * as with the asynchronous pipeline, their outcome is only logged there.
  * The communication to the Portfolio Feed Simulator, through the
  * Portfolio Data Adapter, is handled here.
  */
@@ -64,6 +74,22 @@ public class PortfolioMetadataAdapter extends LiteralBasedProvider {
      */
     private Logger logger;
 
+    /**
+     * Configuration of the asynchronous order pipeline;
+     * a 0 number of queues means that the orders are applied synchronously.
+     */
+    private int orderQueues = 0;
+
+    private int orderQueueCapacity = 1000;
+
+    private long orderQueueBlockMillis = 0;
+
+    /**
+     * The asynchronous order pipeline, if configured; it is created
+     * together with the binding to the feed.
+     */
+    private volatile OrderPipeline orderPipeline;
+
     public PortfolioMetadataAdapter() {
     }
 
@@ -86,6 +112,35 @@ public class PortfolioMetadataAdapter extends LiteralBasedProvider {
         // Read the Adapter Set name, which is supplied by the Server as a parameter
         this.adapterSetId = (String) params.get("adapters_conf.id");
 
+        // Read the optional configuration of the asynchronous order pipeline:
+        // "order_queues" enables it, by setting the number of queues;
+        // "order_queue_capacity" sets the size of each queue;
+        // "order_queue_full_policy" can be "reject" (the default), to refuse
+        // orders when a queue is full, or "block", to wait for room for up to
+        // "order_queue_block_millis" milliseconds (default 100) first
+        try {
+            String queues = (String) params.get("order_queues");
+            if (queues != null) {
+                this.orderQueues = Integer.parseInt(queues);
+            }
+            String capacity = (String) params.get("order_queue_capacity");
+            if (capacity != null) {
+                this.orderQueueCapacity = Integer.parseInt(capacity);
+            }
+            String policy = (String) params.get("order_queue_full_policy");
+            if (policy != null && policy.equals("block")) {
+                String blockMillis = (String) params.get("order_queue_block_millis");
+                this.orderQueueBlockMillis = (blockMillis != null ? Long.parseLong(blockMillis) : 100);
+            } else if (policy != null && !policy.equals("reject")) {
+                throw new MetadataProviderException("Wrong order_queue_full_policy: " + policy);
+            }
+        } catch (NumberFormatException e) {
+            throw new MetadataProviderException("Wrong order pipeline configuration: " + e.getMessage());
+        }
+        if (this.orderQueues < 0 || this.orderQueueCapacity <= 0 || this.orderQueueBlockMillis < 0) {
+            throw new MetadataProviderException("Wrong order pipeline configuration");
+        }
+
         /*
          * Note: the PortfolioFeedSimulator instance cannot be looked for here
          * to initialize the "portfolioFeed" variable, because the Portfolio
@@ -97,6 +152,26 @@ public class PortfolioMetadataAdapter extends LiteralBasedProvider {
         logger.info("PortfolioMetadataAdapter ready");
     }
 
+    /**
+     * Reusable descriptors for the parsing of the order messages;
+     * one for each thread of the Server pool.
+     */
+    private final ThreadLocal<OrderMessage> orderMessages = new ThreadLocal<OrderMessage>() {
+        protected OrderMessage initialValue() {
+            return new OrderMessage();
+        }
+    };
+
+    /**
+     * Reusable collectors for the batch order messages;
+     * one for each thread of the Server pool.
+     */
+    private final ThreadLocal<OrderBatch> orderBatches = new ThreadLocal<OrderBatch>() {
+        protected OrderBatch initialValue() {
+            return new OrderBatch();
+        }
+    };
+
     /**
      * Triggered by a client "sendMessage" call.
      * The message encodes an order entry request by the client.
@@ -112,10 +187,18 @@ public class PortfolioMetadataAdapter extends LiteralBasedProvider {
             throw new NotificationException("Null message received");
         }
 
-        String[] pieces = message.split("\\|");
+        if (message.indexOf(';') >= 0) {
+            this.loadPortolioFeed();
+            this.handleBatchMessage(message);
+            return;
+        }
+
+        // Parse the message in place, on a descriptor owned by this thread
+        OrderMessage order = orderMessages.get();
+        int parseResult = order.parse(message);
 
         this.loadPortolioFeed();
-        this.handlePortfolioMessage(pieces,message);
+        this.handlePortfolioMessage(order, parseResult);
     }
 
     private void loadPortolioFeed() throws CreditsException {
@@ -143,24 +226,55 @@ public class PortfolioMetadataAdapter extends LiteralBasedProvider {
                         "No portfolio feed available");
             }
         }
+        if (this.orderQueues > 0 && this.orderPipeline == null) {
+            synchronized (this) {
+                if (this.orderPipeline == null) {
+                    this.orderPipeline = new OrderPipeline(this.portfolioFeed,
+                            this.orderQueues, this.orderQueueCapacity,
+                            this.orderQueueBlockMillis, logger);
+                }
+            }
+        }
+    }
+
+    /**
+     * Enqueues an order on the asynchronous pipeline, or forwards it
+     * to the owner of the portfolio, if not owned.
+     */
+    private void submitOrder(int portfolioN, int stockN, int qty) throws CreditsException {
+        PortfolioCluster cluster = this.portfolioFeed.getCluster();
+        if (!cluster.isOwned(portfolioN)) {
+            cluster.forwardOrder(portfolioN, stockN, qty);
+            return;
+        }
+        boolean accepted;
+        try {
+            accepted = this.orderPipeline.submit(portfolioN, stockN, qty);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            logger.warn("Order queue full; order refused");
+            throw new CreditsException(2, "Order queue full", "Order queue full");
+        }
     }
 
-    private void handlePortfolioMessage(String[] operation, String message)
+    private void handlePortfolioMessage(OrderMessage order, int parseResult)
         throws NotificationException, CreditsException {
-        if (operation.length != 4) {
+        String message = order.getMessage();
+        if (parseResult == OrderMessage.WRONG_FORMAT) {
             logger.warn("Wrong message received: " + message);
             throw new NotificationException("Wrong message received");
         }
 
-        int qty;
-        try {
-            // Parse the received quantity to be an integer
-            qty = Integer.parseInt(operation[3]);
-        } catch (NumberFormatException e) {
+        if (parseResult == OrderMessage.WRONG_QTY) {
+            // The received quantity is not an integer
             logger.warn("Wrong message received (quantity must be an integer number): "
                             + message);
             throw new NotificationException("Wrong message received");
         }
+        int qty = order.getQty();
         if (qty <= 0) {
             // Quantity can't be a negative number or 0; just ignore
             logger.warn("Wrong message received (quantity must be greater than 0): "
@@ -168,26 +282,163 @@ public class PortfolioMetadataAdapter extends LiteralBasedProvider {
             return;
         }
 
-        // get the needed portfolio
-        Portfolio portfolio = this.portfolioFeed.getPortfolio(operation[1]);
+        // get the needed portfolio, by resolving its id in place
+        int portfolioN = this.portfolioFeed.getPortfolioIds().ordinal(message,
+                order.getStart(OrderMessage.PORTFOLIO_FIELD), order.getEnd(OrderMessage.PORTFOLIO_FIELD));
+        if (portfolioN >= 0 && (this.orderPipeline != null
+                || !this.portfolioFeed.getCluster().isOwned(portfolioN))) {
+            this.enqueuePortfolioMessage(order, portfolioN);
+            return;
+        }
+        Portfolio portfolio;
+        if (portfolioN >= 0) {
+            portfolio = this.portfolioFeed.getPortfolio(portfolioN);
+        } else {
+            // let the feed log the wrong id
+            portfolio = this.portfolioFeed.getPortfolio(order.getField(OrderMessage.PORTFOLIO_FIELD));
+        }
         if (portfolio == null) {
             // since the feed creates a new portfolio if no one is available for
-            // an id, this will never occur
-            logger.error("No such portfolio: " + operation[1]);
+            // an id, this will only occur for a wrong id
+            logger.error("No such portfolio: " + order.getField(OrderMessage.PORTFOLIO_FIELD));
             throw new CreditsException(0, "Portfolio not available",
                     "Portfolio not available");
         }
+
+        int op = order.getOp();
+        if (op == OrderMessage.OTHER) {
+            // unknown operation; just ignore
+            return;
+        }
+
+        // resolve the stock id in place as well; in case of a wrong
+        // id, the portfolio will reject it as a string, so as to
+        // report it in the error message
+        int stockN = this.portfolioFeed.getStocks().ordinal(message,
+                order.getStart(OrderMessage.STOCK_FIELD), order.getEnd(OrderMessage.STOCK_FIELD));
         try {
-            if (operation[0].equals("BUY")) {
+            if (op == OrderMessage.BUY) {
                 // Call the buy operation on the selected portfolio
-                portfolio.buy(operation[2], qty);
-            } else if (operation[0].equals("SELL")) {
+                if (stockN >= 0) {
+                    portfolio.buy(stockN, qty);
+                } else {
+                    portfolio.buy(order.getField(OrderMessage.STOCK_FIELD), qty);
+                }
+            } else {
                 // Call the sell operation on the selected portfolio
-                portfolio.sell(operation[2], qty);
+                if (stockN >= 0) {
+                    portfolio.sell(stockN, qty);
+                } else {
+                    portfolio.sell(order.getField(OrderMessage.STOCK_FIELD), qty);
+                }
             }
         } catch (Exception e) {
             throw new CreditsException(1, e.getMessage());
         }
     }
 
+    /**
+     * Asynchronous counterpart of the last part of handlePortfolioMessage;
+     * the same validations are performed, but the order is just enqueued
+     * or forwarded.
+     */
+    private void enqueuePortfolioMessage(OrderMessage order, int portfolioN)
+        throws CreditsException {
+        int op = order.getOp();
+        if (op == OrderMessage.OTHER) {
+            // unknown operation; just ignore
+            return;
+        }
+        String message = order.getMessage();
+        int stockN = this.portfolioFeed.getStocks().ordinal(message,
+                order.getStart(OrderMessage.STOCK_FIELD), order.getEnd(OrderMessage.STOCK_FIELD));
+        if (stockN < 0) {
+            String error = "Not valid stock to " + (op == OrderMessage.BUY ? "buy: " : "sell: ")
+                    + order.getField(OrderMessage.STOCK_FIELD);
+            logger.warn(error);
+            throw new CreditsException(1, error);
+        }
+        int qty = order.getQty();
+        this.submitOrder(portfolioN, stockN, op == OrderMessage.BUY ? qty : -qty);
+    }
+
+    /**
+     * Handles a message carrying multiple orders, separated by ';'.
+     * If any order is malformed, the whole message is refused; otherwise
+     * the orders are applied, with a single lock acquisition for each
+     * portfolio involved, and, if any order was not applied, a
+     * CreditsException reports the failed orders, numbered from 1,
+     * as in "2:No stock to sell;5:Portfolio not available".
+     */
+    private void handleBatchMessage(String message)
+        throws NotificationException, CreditsException {
+        OrderMessage order = orderMessages.get();
+        OrderBatch batch = orderBatches.get();
+        batch.clear();
+
+        int start = 0;
+        int length = message.length();
+        while (start < length) {
+            int end = message.indexOf(';', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                int parseResult = order.parse(message, start, end);
+                if (parseResult != OrderMessage.OK) {
+                    logger.warn("Wrong message received: " + message);
+                    throw new NotificationException("Wrong message received");
+                }
+                this.collectOrder(order, batch);
+            }
+            start = end + 1;
+        }
+
+        // the orders for the portfolios owned by other nodes are forwarded
+        batch.forward(this.portfolioFeed.getCluster());
+        if (this.orderPipeline != null) {
+            try {
+                batch.submit(this.orderPipeline);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CreditsException(2, "Order queue full", "Order queue full");
+            }
+        } else {
+            batch.apply(this.portfolioFeed);
+        }
+
+        String failures = batch.getFailures();
+        if (failures != null) {
+            logger.warn("Orders not applied: " + failures);
+            throw new CreditsException(1, "Orders not applied", failures);
+        }
+    }
+
+    private void collectOrder(OrderMessage order, OrderBatch batch) {
+        String message = order.getMessage();
+        int qty = order.getQty();
+        if (qty <= 0) {
+            batch.addRejected("Quantity must be greater than 0");
+            return;
+        }
+        int op = order.getOp();
+        if (op == OrderMessage.OTHER) {
+            batch.addRejected("Unknown operation");
+            return;
+        }
+        int portfolioN = this.portfolioFeed.getPortfolioIds().ordinal(message,
+                order.getStart(OrderMessage.PORTFOLIO_FIELD), order.getEnd(OrderMessage.PORTFOLIO_FIELD));
+        if (portfolioN < 0) {
+            batch.addRejected("Portfolio not available");
+            return;
+        }
+        int stockN = this.portfolioFeed.getStocks().ordinal(message,
+                order.getStart(OrderMessage.STOCK_FIELD), order.getEnd(OrderMessage.STOCK_FIELD));
+        if (stockN < 0) {
+            batch.addRejected("Not valid stock: " + order.getField(OrderMessage.STOCK_FIELD));
+            return;
+        }
+        batch.add(portfolioN, stockN, op == OrderMessage.BUY ? qty : -qty);
+    }
+
 }
\ No newline at end of file
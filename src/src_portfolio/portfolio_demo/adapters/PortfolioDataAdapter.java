@@ -17,17 +17,24 @@
 package portfolio_demo.adapters;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.apache.log4j.Logger;
 import org.apache.log4j.xml.DOMConfigurator;
 
+import portfolio_demo.feed_simulator.OrderGenerator;
 import portfolio_demo.feed_simulator.Portfolio;
+import portfolio_demo.feed_simulator.PortfolioCluster;
 import portfolio_demo.feed_simulator.PortfolioFeedSimulator;
 import portfolio_demo.feed_simulator.PortfolioListener;
+import portfolio_demo.feed_simulator.PortfolioSummaryListener;
+import portfolio_demo.feed_simulator.ValuationEngine;
 
 import com.lightstreamer.interfaces.data.DataProviderException;
 import com.lightstreamer.interfaces.data.FailureException;
@@ -44,6 +51,8 @@ import com.lightstreamer.interfaces.data.SubscriptionException;
  * This example demonstrates how a Data Adapter could interoperate with
  * an external feed; in this example, the feed provides a bean object
  * for each single portfolio instance.
+ * If the feed is a node of a cluster (see PortfolioCluster), the
+ * portfolios owned by other nodes are served through replicas.
  */
 public class PortfolioDataAdapter implements SmartDataProvider {
 
@@ -60,17 +69,54 @@ public class PortfolioDataAdapter implements SmartDataProvider {
 
     /**
      * A map containing every active subscriptions;
-     * It associates each item name with the item handle to be used
-     * to identify the item towards Lightstreamer Kernel.
+     * It associates each item name with the listener attached to the
+     * portfolio on behalf of the subscription; the listener carries the
+     * item handle to be used to identify the item towards Lightstreamer
+     * Kernel.
+     */
+    private final ConcurrentHashMap<String, ItemListener> subscriptions =
+        new ConcurrentHashMap<String, ItemListener>();
+
+    /**
+     * Prefix of the names of the summary items, in MERGE mode, which
+     * carry aggregate figures of a portfolio; the rest of the name is
+     * the portfolio id. The other items, in COMMAND mode, carry the
+     * contents of a portfolio and are named after the portfolio id.
      */
-    private final ConcurrentHashMap<String, Object> subscriptions =
-        new ConcurrentHashMap<String, Object>();
+    public static final String SUMMARY_PREFIX = "portfolio_summary.";
 
     /**
      * The feed simulator.
      */
     private PortfolioFeedSimulator feed;
 
+    /**
+     * The name of the Adapter Set, which identifies the feed in feedMap.
+     */
+    private String adapterSetId;
+
+    /**
+     * The synthetic order flow, if configured; null otherwise.
+     */
+    private OrderGenerator generator;
+
+    /**
+     * The name of the metrics MBean, if registered; null otherwise.
+     */
+    private ObjectName metricsName;
+
+    /**
+     * Serves the metrics over HTTP, if configured; null otherwise.
+     */
+    private MetricsServer metricsServer;
+
+    /**
+     * Invokes close upon JVM shutdown.
+     */
+    private Thread shutdownHook;
+
+    private boolean closed = false;
+
     /**
      * A static map, to be used by the Metadata Adapter to find the feed
      * instance; this allows the Metadata Adapter to forward client order
@@ -100,19 +146,113 @@ public class PortfolioDataAdapter implements SmartDataProvider {
         logger = Logger.getLogger("LS_demos_Logger.Portfolio");
 
         // Read the Adapter Set name, which is supplied by the Server as a parameter
-        String adapterSetId = (String) params.get("adapters_conf.id");
+        adapterSetId = (String) params.get("adapters_conf.id");
+
+        // "Bind" to the feed simulator, which also takes its own
+        // configuration from our parameters
+        try {
+            feed = new PortfolioFeedSimulator(logger, params, configDir);
+        } catch (IllegalArgumentException e) {
+            throw new DataProviderException(e.getMessage());
+        }
+
+        // Start the synthetic order flow, if configured; the updates go
+        // through the same path as the ones for the clients, up to a
+        // stub listener in place of the Kernel
+        if (params.get("generator_threads") != null) {
+            final ItemEventListener stubListener = new StubItemEventListener();
+            try {
+                generator = new OrderGenerator(feed, logger, params,
+                    new OrderGenerator.ListenerFactory() {
+                        public PortfolioListener create(String portfolioId) {
+                            return new MyPortfolioListener(stubListener, portfolioId, portfolioId);
+                        }
+                    });
+                generator.start();
+            } catch (IllegalArgumentException e) {
+                throw new DataProviderException(e.getMessage());
+            }
+        }
 
-        // "Bind" to the feed simulator
-        feed = new PortfolioFeedSimulator(logger);
+        // Expose the metrics of the feed through JMX and, if configured,
+        // as text on a local HTTP port
+        try {
+            ObjectName name = new ObjectName("portfolio_demo:type=FeedMetrics,adapterSet="
+                    + ObjectName.quote(String.valueOf(adapterSetId)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(feed.getMetrics(), name);
+            metricsName = name;
+        } catch (JMException e) {
+            // not essential
+            logger.warn("Cannot register the metrics MBean: " + e.getMessage());
+        }
+        String metricsPort = (String) params.get("metrics_port");
+        if (metricsPort != null) {
+            try {
+                metricsServer = new MetricsServer(feed.getMetrics(), Integer.parseInt(metricsPort));
+            } catch (NumberFormatException e) {
+                throw new DataProviderException("Wrong metrics_port: " + metricsPort);
+            } catch (IOException e) {
+                throw new DataProviderException("Cannot open metrics_port " + metricsPort + ": " + e.getMessage());
+            }
+            logger.info("Metrics available on http://127.0.0.1:" + metricsPort + "/");
+        }
 
         // Put the feed instance on a static map to be read by the Metadata
         // Adapter
         feedMap.put(adapterSetId, feed);
 
+        // The Server has no call to release a Data Adapter, hence the
+        // resources are released upon JVM shutdown, so that, in particular,
+        // the journal, if any, is forced to disk
+        shutdownHook = new Thread("Portfolio adapter shutdown") {
+            public void run() {
+                close();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
         // Adapter ready
         logger.info("PortfolioDataAdapter ready");
     }
 
+    /**
+     * Releases the resources taken by init: the order generator is
+     * stopped, the metrics are no longer exposed, the feed is closed
+     * and removed from feedMap. Called upon
+     * JVM shutdown, but it can be called before; then the adapter can
+     * no longer be used.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // we are running as the hook
+        }
+        if (generator != null) {
+            generator.stop();
+        }
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                logger.warn("Cannot unregister the metrics MBean: " + e.getMessage());
+            }
+        }
+        feedMap.remove(adapterSetId, feed);
+        feed.close();
+
+        logger.info("PortfolioDataAdapter closed");
+    }
+
     public void setListener(ItemEventListener listener) {
         // Save the update listener
         this.listener = listener;
@@ -124,163 +264,283 @@ public class PortfolioDataAdapter implements SmartDataProvider {
         return true;
     }
 
-    public void subscribe(String portfolioId, Object handle, boolean arg2)
+    public void subscribe(String itemName, Object handle, boolean arg2)
             throws SubscriptionException, FailureException {
 
-        assert(! subscriptions.containsKey(portfolioId));
+        assert(! subscriptions.containsKey(itemName));
 
-        Portfolio portfolio = feed.getPortfolio(portfolioId);
-        if (portfolio == null) {
+        boolean summary = itemName.startsWith(SUMMARY_PREFIX);
+        String portfolioId = summary ? itemName.substring(SUMMARY_PREFIX.length()) : itemName;
+
+        int portfolioN = feed.getPortfolioIds().ordinal(portfolioId);
+        if (portfolioN < 0) {
             logger.error("No such portfolio: " + portfolioId);
             throw new SubscriptionException("No such portfolio: "
                     + portfolioId);
         }
 
-        // Add the new item to the list of subscribed items
-        subscriptions.put(portfolioId, handle);
+        // Get the portfolio, or, if owned by another node of the cluster,
+        // a replica of it
+        PortfolioCluster cluster = feed.getCluster();
+        Portfolio portfolio = cluster.acquire(portfolioN);
+        if (portfolio == null) {
+            throw new FailureException("Portfolio " + portfolioId
+                    + " not available from node " + cluster.getOwner(portfolioN));
+        }
 
         // Create a new listener for the portfolio
-        MyPortfolioListener listener = new MyPortfolioListener(
-                handle, portfolioId);
-        // Set the listener on the feed
-        portfolio.setListener(listener);
+        ItemListener listener;
+        if (summary) {
+            listener = new SummaryListener(this.listener, handle, portfolioId);
+        } else {
+            listener = new MyPortfolioListener(this.listener, handle, portfolioId);
+        }
+
+        // Add the new item to the list of subscribed items
+        subscriptions.put(itemName, listener);
+        feed.getMetrics().recordSubscription();
+
+        // Attach the listener to the feed
+        portfolio.addListener(listener);
 
-        logger.info(portfolioId + " subscribed");
+        logger.info(itemName + " subscribed");
     }
 
-    public void unsubscribe(String portfolioId)
+    public void unsubscribe(String itemName)
             throws SubscriptionException, FailureException {
 
-        assert(subscriptions.containsKey(portfolioId));
-
-        Portfolio portfolio = feed.getPortfolio(portfolioId);
-        if (portfolio != null) {
-            // Remove the listener from the feed to not receive new
-            // updates
-            portfolio.removeListener();
+        assert(subscriptions.containsKey(itemName));
+
+        // Remove the item from the list of subscribed items and
+        // make the related listener discard any late call
+        ItemListener listener = subscriptions.remove(itemName);
+        if (listener != null) {
+            listener.deactivate();
+            feed.getMetrics().recordUnsubscription();
+
+            PortfolioCluster cluster = feed.getCluster();
+            Portfolio portfolio = cluster.getAcquired(listener.portfolioN);
+            if (portfolio != null) {
+                // Remove the listener from the feed to not receive new
+                // updates
+                portfolio.removeListener(listener);
+            }
+            cluster.release(listener.portfolioN);
         }
-        // Remove the handle from the list of subscribed items
-        subscriptions.remove(portfolioId);
-
-        logger.info(portfolioId + " unsubscribed");
-    }
 
-    private final boolean isSubscribed(Object handle) {
-        // Just check if a given handle is in the map of subscribed items
-        return subscriptions.contains(handle);
+        logger.info(itemName + " unsubscribed");
     }
 
-    private void onUpdate(Object handle, String key, int qty) {
+    private void onUpdate(MyPortfolioListener source, String key, int qty) {
         // An update was received from the feed
         // Check for late calls
-        if (isSubscribed(handle)) {
-            // Create a new HashMap instance that will represent the update
-            HashMap<String, String> update = new HashMap<String, String>();
-            // We have to set the key
-            update.put("key", key);
-            // The UPDATE command
-            update.put("command", "UPDATE");
-            // And the new quantity value
-            update.put("qty", String.valueOf(qty));
+        if (source.isActive()) {
+            // Refill the event of the subscription with the key,
+            // the UPDATE command and the new quantity value
+            PortfolioEvent update = source.event.set(key, "UPDATE", qty);
+            addValuation(source, update, key, qty);
 
             // Pass everything to the kernel
-            listener.smartUpdate(handle, update, false);
+            source.target.smartUpdate(source.handle, update, false);
+        } else {
+            feed.getMetrics().recordLateCallDrop();
         }
     }
 
-    private void onDelete(Object handle, String key) {
+    private void onDelete(MyPortfolioListener source, String key) {
         // An update was received from the feed
         // Check for late calls
-        if (isSubscribed(handle)) {
-            // Create a new HashMap instance that will represent the update
-            HashMap<String, String> update = new HashMap<String, String>();
-            // We just need the key
-            update.put("key", key);
-            // And the DELETE command
-            update.put("command", "DELETE");
+        if (source.isActive()) {
+            // Refill the event of the subscription;
+            // we just need the key and the DELETE command
+            PortfolioEvent update = source.event.setDelete(key);
 
             // Pass everything to the kernel
-            listener.smartUpdate(handle, update, false);
+            source.target.smartUpdate(source.handle, update, false);
+        } else {
+            feed.getMetrics().recordLateCallDrop();
         }
     }
 
-    private void onAdd(Object handle, String key, int qty, boolean snapshot) {
+    private void onAdd(MyPortfolioListener source, String key, int qty, boolean snapshot) {
         // An update for a new stock was received from the feed or the snapshot was read
         // Check for late calls
-        if (isSubscribed(handle)) {
-            // Create a new HashMap instance that will represent the update
-            HashMap<String, String> update = new HashMap<String, String>();
-            // We have to set the key
-            update.put("key", key);
-            // The ADD command
-            update.put("command", "ADD");
-            // And the initial quantity
-            update.put("qty", String.valueOf(qty));
+        if (source.isActive()) {
+            // Refill the event of the subscription with the key,
+            // the ADD command and the initial quantity
+            PortfolioEvent update = source.event.set(key, "ADD", qty);
+            addValuation(source, update, key, qty);
 
             // Pass everything to the kernel
-            listener.smartUpdate(handle, update, snapshot);
+            source.target.smartUpdate(source.handle, update, snapshot);
+        } else {
+            feed.getMetrics().recordLateCallDrop();
         }
 
     }
 
+    private void addValuation(MyPortfolioListener source, PortfolioEvent update, String key, int qty) {
+        // If the feed values the portfolios, add the current price of
+        // the stock and the current values of the position and of the
+        // whole portfolio; the replicas of the portfolios owned by other
+        // nodes are not valued
+        ValuationEngine valuation = feed.getValuation();
+        if (valuation != null && feed.getCluster().isOwned(source.portfolioN)) {
+            int stockN = feed.getStocks().ordinal(key);
+            if (stockN >= 0) {
+                long price = valuation.getPrice(stockN);
+                update.setValuation(price, price * qty, valuation.getValue(source.portfolioN));
+            }
+        }
+    }
+
     /**
-     * Inner class that listens to a single Portfolio.
+     * Base class of the listeners that serve an item on behalf
+     * of a subscription.
      */
-    private class MyPortfolioListener implements PortfolioListener {
+    private abstract class ItemListener implements PortfolioListener {
 
+        // The listener the events are sent to
+        protected final ItemEventListener target;
         // The handle representing the subscription
-        private Object handle;
-        // Id of the portfolio, used just for the log
-        private String portfolioId;
-
-        public MyPortfolioListener(Object handle, String portfolioId) {
+        protected final Object handle;
+        // Id of the portfolio
+        protected final String portfolioId;
+        // Ordinal of the portfolio
+        protected final int portfolioN;
+        // Cleared upon unsubscription, so that late calls from the feed,
+        // which may still be enqueued, can be detected in constant time
+        private volatile boolean active = true;
+
+        protected ItemListener(ItemEventListener target, Object handle, String portfolioId) {
+            this.target = target;
             this.handle = handle;
             this.portfolioId = portfolioId;
+            this.portfolioN = feed.getPortfolioIds().ordinal(portfolioId);
+        }
+
+        public boolean isActive() {
+            return this.active;
+        }
+
+        public void deactivate() {
+            this.active = false;
+        }
+    }
+
+    /**
+     * Inner class that listens to a single Portfolio.
+     */
+    private class MyPortfolioListener extends ItemListener {
+
+        // Reused for all the updates, as the feed calls the listener
+        // one at a time
+        private final PortfolioEvent event = new PortfolioEvent();
+
+        public MyPortfolioListener(ItemEventListener target, Object handle, String portfolioId) {
+            super(target, handle, portfolioId);
         }
 
         public void update(String stock, int qty, int oldQty) {
             // An update was received from the feed
             if (qty <= 0) {
                 // If qty is 0 or less we have to delete the "row"
-                onDelete(this.handle, stock);
-                logger.debug(this.portfolioId + ": deleted " + stock);
+                onDelete(this, stock);
+                if (logger.isDebugEnabled()) {
+                    logger.debug(this.portfolioId + ": deleted " + stock);
+                }
 
             } else if (oldQty == 0) {
                 // If oldQty value is 0 then this is a new stock
                 // in the portfolio so that we have to add a "row"
-                onAdd(this.handle, stock, qty, false);
-                logger.debug(this.portfolioId + ": added " + stock);
+                onAdd(this, stock, qty, false);
+                if (logger.isDebugEnabled()) {
+                    logger.debug(this.portfolioId + ": added " + stock);
+                }
 
             } else {
                 // A simple update
-                onUpdate(this.handle, stock, qty);
-                logger.debug(this.portfolioId + ": updated " + stock);
+                onUpdate(this, stock, qty);
+                if (logger.isDebugEnabled()) {
+                    logger.debug(this.portfolioId + ": updated " + stock);
+                }
             }
         }
 
         public void onActualStatus(Map<String, Integer> currentStatus) {
-            Set<String> keys = currentStatus.keySet();
-            // Iterates through the Hash representing the actual status to send
-            // the snapshot to
-            // the kernel
-            for (String key : keys) {
-                onAdd(handle, key, currentStatus.get(key).intValue(), true);
+            // Iterates through the map representing the actual status to send
+            // the snapshot to the kernel, in a single pass
+            for (Map.Entry<String, Integer> entry : currentStatus.entrySet()) {
+                onAdd(this, entry.getKey(), entry.getValue().intValue(), true);
             }
             
             // Notify the end of snapshot to the kernel
-            listener.smartEndOfSnapshot(handle);
+            target.smartEndOfSnapshot(handle);
 
             logger.info(this.portfolioId + ": snapshot sent");
         }
 
         public void empty() {
             //tell the server to clean its status
-            listener.smartClearSnapshot(handle);
+            target.smartClearSnapshot(handle);
             
             logger.info(this.portfolioId + ": snapshot cleared");
         }
     }
 
+    /**
+     * Inner class that listens to a single Portfolio on behalf of its
+     * summary item; the figures are not computed here, but supplied by
+     * the portfolio along with each notification, as taken upon the
+     * change, so that the portfolio is not locked again here.
+     */
+    private class SummaryListener extends ItemListener implements PortfolioSummaryListener {
+
+        // Reused for all the updates, as the feed calls the listener
+        // one at a time
+        private final SummaryEvent event = new SummaryEvent();
+
+        // The figures supplied with the notification being delivered
+        private int positionCount;
+        private long totalShares;
+        private long lastChange;
+
+        public SummaryListener(ItemEventListener target, Object handle, String portfolioId) {
+            super(target, handle, portfolioId);
+        }
+
+        public void setSummary(int positionCount, long totalShares, long lastChange) {
+            this.positionCount = positionCount;
+            this.totalShares = totalShares;
+            this.lastChange = lastChange;
+        }
+
+        private void send(boolean snapshot) {
+            // Check for late calls
+            if (isActive()) {
+                target.smartUpdate(handle, event.set(positionCount, totalShares, lastChange), snapshot);
+            } else {
+                feed.getMetrics().recordLateCallDrop();
+            }
+        }
+
+        public void onActualStatus(Map<String, Integer> currentStatus) {
+            send(true);
+            logger.info(SUMMARY_PREFIX + this.portfolioId + ": snapshot sent");
+        }
+
+        public void update(String stock, int qty, int oldQty) {
+            if (qty != oldQty) {
+                // not just a revaluation
+                send(false);
+            }
+        }
+
+        public void empty() {
+            send(false);
+        }
+    }
+
     public void subscribe(String portfolioId, boolean arg1)
             throws SubscriptionException, FailureException {
         // Never called on a SmartDataProvider
@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.adapters;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import portfolio_demo.feed_simulator.ValuationEngine;
+
+import com.lightstreamer.interfaces.data.ItemEvent;
+
+/**
+ * A mutable update event for a portfolio item in COMMAND mode, with the
+ * fixed "key", "command" and "qty" fields, plus the "price", "value" and
+ * "total" fields, if the portfolios are valued; "total" is the value of
+ * the whole portfolio when the event is sent, hence clients can take it
+ * from the latest event of any row.
+ * An instance is meant to be refilled and reused for every update
+ * of the same item; this relies on the calls for the same item being
+ * issued one at a time and on the Kernel consuming the event
+ * before smartUpdate returns.
+ */
+public class PortfolioEvent implements ItemEvent {
+
+    private static final List<String> NAMES =
+        Collections.unmodifiableList(Arrays.asList("key", "command", "qty"));
+
+    private static final List<String> NAMES_VALUED =
+        Collections.unmodifiableList(Arrays.asList("key", "command", "qty", "price", "value", "total"));
+
+    private static final List<String> NAMES_NO_QTY =
+        Collections.unmodifiableList(Arrays.asList("key", "command"));
+
+    /**
+     * Quantities below this value have their string representation cached.
+     */
+    private static final int CACHED_QTYS = 10000;
+
+    /**
+     * Quantities multiple of 100 (the typical lot) and below this value
+     * have their string representation cached as well.
+     */
+    private static final int CACHED_LOTS = 100 * CACHED_QTYS;
+
+    /**
+     * Lazily filled caches of the string representation of quantities;
+     * races can only cause a value to be computed more than once.
+     */
+    private static final String[] qtyCache = new String[CACHED_QTYS];
+
+    private static final String[] lotCache = new String[CACHED_QTYS];
+
+    private String key;
+
+    private String command;
+
+    private String qty;
+
+    private String price;
+
+    private String value;
+
+    private String total;
+
+    /**
+     * Fills the event with an ADD or UPDATE command.
+     */
+    public PortfolioEvent set(String key, String command, int qty) {
+        this.key = key;
+        this.command = command;
+        this.qty = qtyToString(qty);
+        this.price = null;
+        return this;
+    }
+
+    /**
+     * Adds the valuation fields to an ADD or UPDATE command;
+     * the amounts are in cents.
+     */
+    public PortfolioEvent setValuation(long price, long value, long total) {
+        this.price = ValuationEngine.format(price);
+        this.value = ValuationEngine.format(value);
+        this.total = ValuationEngine.format(total);
+        return this;
+    }
+
+    /**
+     * Fills the event with a DELETE command, which carries no quantity.
+     */
+    public PortfolioEvent setDelete(String key) {
+        this.key = key;
+        this.command = "DELETE";
+        this.qty = null;
+        this.price = null;
+        return this;
+    }
+
+    public Iterator getNames() {
+        if (qty == null) {
+            return NAMES_NO_QTY.iterator();
+        }
+        return (price == null ? NAMES : NAMES_VALUED).iterator();
+    }
+
+    public String getValueAsString(String name) {
+        if (name.equals("key")) {
+            return key;
+        } else if (name.equals("command")) {
+            return command;
+        } else if (name.equals("qty")) {
+            return qty;
+        } else if (name.equals("price")) {
+            return price;
+        } else if (name.equals("value")) {
+            return price != null ? value : null;
+        } else if (name.equals("total")) {
+            return price != null ? total : null;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the string representation of a quantity,
+     * taking it from the cache for the most common values.
+     */
+    static String qtyToString(int qty) {
+        String str;
+        if (qty >= 0 && qty < CACHED_QTYS) {
+            str = qtyCache[qty];
+            if (str == null) {
+                str = String.valueOf(qty);
+                qtyCache[qty] = str;
+            }
+        } else if (qty > 0 && qty < CACHED_LOTS && qty % 100 == 0) {
+            str = lotCache[qty / 100];
+            if (str == null) {
+                str = String.valueOf(qty);
+                lotCache[qty / 100] = str;
+            }
+        } else {
+            str = String.valueOf(qty);
+        }
+        return str;
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2013 Weswit Srl
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package portfolio_demo.adapters;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import portfolio_demo.feed_simulator.PortfolioSummary;
+
+import com.lightstreamer.interfaces.data.ItemEvent;
+
+/**
+ * A mutable update event for a portfolio summary item in MERGE mode, with
+ * the "positions" (number of stocks held), "shares" (total quantity held)
+ * and "last_change" (time of the last change, in milliseconds since the
+ * epoch, or empty if not known) fields.
+ * Like PortfolioEvent, an instance is meant to be refilled and reused for
+ * every update of the same item.
+ */
+public class SummaryEvent implements ItemEvent {
+
+    private static final List<String> NAMES =
+        Collections.unmodifiableList(Arrays.asList("positions", "shares", "last_change"));
+
+    private String positions;
+
+    private String shares;
+
+    private String lastChange;
+
+    public SummaryEvent set(PortfolioSummary summary) {
+        return set(summary.getPositionCount(), summary.getTotalShares(), summary.getLastChange());
+    }
+
+    public SummaryEvent set(int positionCount, long totalShares, long lastChange) {
+        this.positions = PortfolioEvent.qtyToString(positionCount);
+        this.shares = String.valueOf(totalShares);
+        this.lastChange = lastChange > 0 ? String.valueOf(lastChange) : "";
+        return this;
+    }
+
+    public Iterator getNames() {
+        return NAMES.iterator();
+    }
+
+    public String getValueAsString(String name) {
+        if (name.equals("positions")) {
+            return positions;
+        } else if (name.equals("shares")) {
+            return shares;
+        } else if (name.equals("last_change")) {
+            return lastChange;
+        } else {
+            return null;
+        }
+    }
+
+}